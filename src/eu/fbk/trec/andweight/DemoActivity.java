@@ -9,7 +9,7 @@
  */
 package eu.fbk.trec.andweight;
 
-import java.util.List;
+import java.util.Date;
 
 import android.app.Activity;
 import android.content.BroadcastReceiver;
@@ -23,8 +23,7 @@ import android.view.View.OnClickListener;
 import android.view.WindowManager;
 import android.widget.Button;
 import android.widget.TextView;
-import eu.fbk.trec.andweight.model.AndWeight;
-import eu.fbk.trec.andweight.model.WeightsWrapper;
+import eu.fbk.trec.andweight.model.WeightsCodec;
 import eu.fbk.trec.andweight.service.BluetoothService;
 
 /**
@@ -136,11 +135,13 @@ public class DemoActivity extends Activity {
 				// }
 
 				case BluetoothService.TYPE_DATA_LIST:
-					WeightsWrapper wrapper = (WeightsWrapper) bundle.getSerializable(BluetoothService.WEIGHTS_LIST);
-					List<AndWeight> w = wrapper.getWeights();
+					byte[] w = bundle.getByteArray(BluetoothService.WEIGHTS_LIST);
 
-					weightTV.setText(w.get(0).getWeight() + " kg");
-					dateTV.setText(String.valueOf(w.get(0).getMeasureDate().toString()));
+					// show the first weight of the batch
+					if (WeightsCodec.size(w) > 0) {
+						weightTV.setText(WeightsCodec.getWeight(w, 0) + " kg");
+						dateTV.setText(new Date(WeightsCodec.getTime(w, 0)).toString());
+					}
 
 					break;
 				}
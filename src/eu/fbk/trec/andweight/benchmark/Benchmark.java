@@ -0,0 +1,36 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.benchmark;
+
+/**
+ * A single benchmark: {@link #run()} is one operation.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public abstract class Benchmark {
+
+	private final String name;
+
+	public Benchmark(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Execute one operation.
+	 * 
+	 * @return A value depending on the result, consumed by the runner so the work cannot be removed.
+	 */
+	public abstract long run() throws Exception;
+
+}
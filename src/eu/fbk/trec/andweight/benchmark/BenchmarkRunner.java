@@ -0,0 +1,146 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Locale;
+
+/**
+ * Run the {@link Benchmark}s with warmup and measurement iterations of fixed duration, and report the throughput
+ * (ops/s) and the bytes allocated per operation.
+ * 
+ * The allocated bytes are read from the HotSpot thread MXBean, when available (not on Android: "n/a").
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class BenchmarkRunner {
+
+	private final int warmupIterations;
+	private final int iterations;
+	private final long iterationMillis;
+
+	// HotSpot allocation counter
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private final Method allocatedBytes;
+
+	// consumes the results of the benchmarks
+	private long sink;
+
+	public BenchmarkRunner(int warmupIterations, int iterations, long iterationMillis) {
+		this.warmupIterations = warmupIterations;
+		this.iterations = iterations;
+		this.iterationMillis = iterationMillis;
+		this.allocatedBytes = allocatedBytesMethod();
+	}
+
+	/**
+	 * Run a benchmark and print the result.
+	 */
+	public void run(Benchmark benchmark) throws Exception {
+		for (int i = 0; i < warmupIterations; i++) {
+			iteration(benchmark, null);
+		}
+
+		double[] throughput = new double[iterations];
+		long ops = 0;
+		long bytes = 0;
+		for (int i = 0; i < iterations; i++) {
+			long[] result = new long[2];
+			throughput[i] = iteration(benchmark, result);
+			ops += result[0];
+			bytes += result[1];
+		}
+
+		double mean = 0;
+		for (double t : throughput) {
+			mean += t;
+		}
+		mean /= iterations;
+		double variance = 0;
+		for (double t : throughput) {
+			variance += (t - mean) * (t - mean);
+		}
+		double error = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+
+		String allocation = allocatedBytes == null || bytes < 0 ? "n/a" : String.format(Locale.US, "%.1f",
+				(double) bytes / ops);
+		System.out.println(String.format(Locale.US, "%-32s %14.0f +- %10.0f ops/s %10s B/op", benchmark.getName(),
+				mean, error, allocation));
+	}
+
+	/**
+	 * Print the value consumed from the benchmarks (so the JIT cannot drop the work).
+	 */
+	public void done() {
+		System.out.println("(sink " + sink + ")");
+	}
+
+	/**
+	 * Run the benchmark for one iteration.
+	 * 
+	 * @param result
+	 *            If not null, receives the number of operations and the allocated bytes.
+	 * @return Operations per second.
+	 */
+	private double iteration(Benchmark benchmark, long[] result) throws Exception {
+		long bytes = allocated();
+		long start = System.nanoTime();
+		long end = start + iterationMillis * 1000000L;
+		long ops = 0;
+		long now;
+		long s = 0;
+
+		// check the time every 64 operations
+		do {
+			for (int i = 0; i < 64; i++) {
+				s += benchmark.run();
+			}
+			ops += 64;
+			now = System.nanoTime();
+		} while (now < end);
+
+		sink += s;
+		if (result != null) {
+			result[0] = ops;
+			long after = allocated();
+			result[1] = bytes < 0 || after < 0 ? -1 : after - bytes;
+		}
+		return ops * 1e9 / (now - start);
+	}
+
+	private long allocated() {
+		if (allocatedBytes == null) {
+			return -1;
+		}
+		try {
+			return (Long) allocatedBytes.invoke(threads, Thread.currentThread().getId());
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	private Method allocatedBytesMethod() {
+		try {
+			Class<?> hotspot = Class.forName("com.sun.management.ThreadMXBean");
+			if (!hotspot.isInstance(threads)) {
+				return null;
+			}
+			Method method = hotspot.getMethod("getThreadAllocatedBytes", long.class);
+			// warm the counter up: the first call may allocate
+			method.invoke(threads, Thread.currentThread().getId());
+			return method;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+}
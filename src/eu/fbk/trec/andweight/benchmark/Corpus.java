@@ -0,0 +1,118 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Random;
+
+import eu.fbk.trec.andweight.exceptions.InvalidMeasureException;
+import eu.fbk.trec.andweight.exceptions.PacketExpection;
+import eu.fbk.trec.andweight.model.AndWeight;
+import eu.fbk.trec.andweight.model.InPacketView;
+import eu.fbk.trec.andweight.simulator.FrameBuilder;
+
+/**
+ * Realistic frames received from the weight scale, used by the benchmarks.
+ * 
+ * The mix is: weights in kg and lb, invalid measures, patient info requests, "cannot wait" packets and garbage. The
+ * corpus is deterministic (fixed seed), so the results of different runs are comparable.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class Corpus {
+
+	private final List<byte[]> frames = new ArrayList<>();
+	private final List<byte[]> weights = new ArrayList<>();
+	private final byte[] stream;
+
+	/**
+	 * Create a corpus.
+	 * 
+	 * @param size
+	 *            Number of frames.
+	 * @param seed
+	 *            Seed of the random generator.
+	 */
+	public Corpus(int size, long seed) {
+		Random random = new Random(seed);
+		Calendar date = Calendar.getInstance();
+		date.set(2015, Calendar.MARCH, 1, 8, 0, 0);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < size; i++) {
+			byte[] frame;
+			int kind = random.nextInt(100);
+			date.add(Calendar.MINUTE, 1 + random.nextInt(600));
+
+			if (kind < 50) {
+				frame = FrameBuilder.weight(400 + random.nextInt(1000), false, 'T', random.nextInt(100), date, date);
+				weights.add(frame);
+			} else if (kind < 70) {
+				frame = FrameBuilder.weight(400 + random.nextInt(1000), true, 'L', random.nextInt(100), date, date);
+				weights.add(frame);
+			} else if (kind < 80) {
+				frame = FrameBuilder.weight(0, false, 'E', random.nextInt(100), date, date);
+			} else if (kind < 88) {
+				frame = FrameBuilder.requestPatientInfo(random.nextInt(100));
+			} else if (kind < 95) {
+				frame = FrameBuilder.cannotWait();
+			} else {
+				frame = FrameBuilder.garbage(1 + random.nextInt(32));
+			}
+
+			frames.add(frame);
+			out.write(frame, 0, frame.length);
+		}
+		stream = out.toByteArray();
+	}
+
+	/**
+	 * All the frames.
+	 */
+	public List<byte[]> frames() {
+		return frames;
+	}
+
+	/**
+	 * Only the weight frames (valid, kg and lb).
+	 */
+	public List<byte[]> weights() {
+		return weights;
+	}
+
+	/**
+	 * The first weights of the corpus, decoded.
+	 */
+	public List<AndWeight> batch(int size) {
+		List<AndWeight> batch = new ArrayList<>(size);
+		InPacketView view = new InPacketView();
+		for (int i = 0; i < size && i < weights.size(); i++) {
+			byte[] frame = weights.get(i);
+			view.wrap(frame, 0, frame.length);
+			try {
+				batch.add(new AndWeight(view.getWeight(), view.getMeasureDate()));
+			} catch (PacketExpection | InvalidMeasureException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return batch;
+	}
+
+	/**
+	 * All the frames, one after the other, as received on the connection.
+	 */
+	public byte[] stream() {
+		return stream;
+	}
+
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+import eu.fbk.trec.andweight.exceptions.InvalidMeasureException;
+import eu.fbk.trec.andweight.exceptions.PacketExpection;
+import eu.fbk.trec.andweight.model.AndWeight;
+import eu.fbk.trec.andweight.model.InPacket;
+import eu.fbk.trec.andweight.model.InPacketView;
+import eu.fbk.trec.andweight.model.PacketFramer;
+import eu.fbk.trec.andweight.model.WeightsCodec;
+import eu.fbk.trec.andweight.service.WeightBatcher;
+import eu.fbk.trec.andweight.utils.HexUtil;
+
+/**
+ * Benchmarks of the decode path: framing, packet classification, weight, dates and patient number, hex dumps, and of
+ * the encoding of the batches of weights sent to the application.
+ * 
+ * Each operation handles one frame of the {@link Corpus} (the framing benchmark handles the whole stream, the number
+ * of frames is printed). Usage:
+ * 
+ * <pre>
+ * DecodeBenchmarks [warmup iterations] [iterations] [milliseconds per iteration] [filter]
+ * </pre>
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class DecodeBenchmarks {
+
+	private static final int CORPUS_SIZE = 1000;
+	private static final long SEED = 42;
+
+	public static void main(String[] args) throws Exception {
+		int warmup = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		long millis = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+		String filter = args.length > 3 ? args[3] : "";
+
+		Corpus corpus = new Corpus(CORPUS_SIZE, SEED);
+		System.out.println("corpus: " + corpus.frames().size() + " frames, " + corpus.weights().size() + " weights, "
+				+ corpus.stream().length + " bytes");
+
+		BenchmarkRunner runner = new BenchmarkRunner(warmup, iterations, millis);
+		for (Benchmark b : benchmarks(corpus)) {
+			if (b.getName().contains(filter)) {
+				runner.run(b);
+			}
+		}
+		runner.done();
+	}
+
+	/**
+	 * All the benchmarks on the given corpus.
+	 */
+	public static Benchmark[] benchmarks(final Corpus corpus) {
+		final List<byte[]> frames = corpus.frames();
+		final List<byte[]> weights = corpus.weights();
+		final byte[] stream = corpus.stream();
+		final List<AndWeight> batch = corpus.batch(WeightBatcher.DEFAULT_MAX_COUNT);
+		final byte[] encodedBatch = WeightsCodec.encode(batch);
+
+		return new Benchmark[] {
+
+		new Benchmark("framer.stream") {
+			private final ByteArrayInputStream input = new ByteArrayInputStream(stream);
+			private final PacketFramer framer = new PacketFramer();
+
+			@Override
+			public long run() throws Exception {
+				input.reset();
+				long n = 0;
+				while (framer.read(input) > 0) {
+					while (framer.next()) {
+						n += framer.frameLength();
+					}
+				}
+				return n;
+			}
+		},
+
+		new Benchmark("InPacket.new+getType") {
+			private int i;
+
+			@Override
+			public long run() {
+				byte[] frame = frames.get(i++ % frames.size());
+				return new InPacket(frame, frame.length).getType().ordinal();
+			}
+		},
+
+		new Benchmark("InPacketView.getType") {
+			private final InPacketView view = new InPacketView();
+			private int i;
+
+			@Override
+			public long run() {
+				byte[] frame = frames.get(i++ % frames.size());
+				return view.wrap(frame, 0, frame.length).getType().ordinal();
+			}
+		},
+
+		new Benchmark("InPacketView.getWeight") {
+			private final InPacketView view = new InPacketView();
+			private int i;
+
+			@Override
+			public long run() throws PacketExpection, InvalidMeasureException {
+				byte[] frame = weights.get(i++ % weights.size());
+				return Float.floatToIntBits(view.wrap(frame, 0, frame.length).getWeight());
+			}
+		},
+
+		new Benchmark("InPacketView.getMeasureDate") {
+			private final InPacketView view = new InPacketView();
+			private int i;
+
+			@Override
+			public long run() throws PacketExpection {
+				byte[] frame = weights.get(i++ % weights.size());
+				return view.wrap(frame, 0, frame.length).getMeasureDate().getTime();
+			}
+		},
+
+		new Benchmark("InPacketView.getMeasureTime") {
+			private final InPacketView view = new InPacketView();
+			private int i;
+
+			@Override
+			public long run() throws PacketExpection {
+				byte[] frame = weights.get(i++ % weights.size());
+				return view.wrap(frame, 0, frame.length).getMeasureTime();
+			}
+		},
+
+		new Benchmark("InPacketView.getPatientNumber") {
+			private final InPacketView view = new InPacketView();
+			private int i;
+
+			@Override
+			public long run() throws PacketExpection {
+				byte[] frame = weights.get(i++ % weights.size());
+				return view.wrap(frame, 0, frame.length).getPatientNumber();
+			}
+		},
+
+		new Benchmark("HexUtil.dump") {
+			private int i;
+
+			@Override
+			public long run() {
+				return HexUtil.dump(frames.get(i++ % frames.size())).length();
+			}
+		},
+
+		new Benchmark("HexUtil.ascii") {
+			private int i;
+
+			@Override
+			public long run() {
+				return HexUtil.ascii(frames.get(i++ % frames.size())).length();
+			}
+		},
+
+		new Benchmark("HexUtil.appendDump") {
+			private final StringBuilder sb = new StringBuilder(512);
+			private int i;
+
+			@Override
+			public long run() {
+				byte[] frame = frames.get(i++ % frames.size());
+				sb.setLength(0);
+				return HexUtil.appendDump(sb, frame, 0, frame.length).length();
+			}
+		},
+
+		new Benchmark("WeightsCodec.encode(batch)") {
+			@Override
+			public long run() {
+				return WeightsCodec.encode(batch).length;
+			}
+		},
+
+		new Benchmark("WeightsCodec.decode(batch)") {
+			@Override
+			public long run() {
+				return WeightsCodec.decode(encodedBatch).size();
+			}
+		},
+
+		};
+	}
+
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.benchmark;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+import eu.fbk.trec.andweight.service.EventDispatcher;
+
+/**
+ * Contention of the event delivery: many producer threads (the sessions) do some work (decoding) between the events,
+ * whose delivery has a cost, either holding a shared monitor during the delivery (as the synchronized callbacks did)
+ * or through an {@link EventDispatcher}.
+ * 
+ * The average time a producer spends publishing an event is printed, with the contention counters of the dispatcher.
+ * Usage:
+ * 
+ * <pre>
+ * DispatchBenchmark [producers] [events per producer] [delivery cost (ns)] [work between events (ns)]
+ * </pre>
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class DispatchBenchmark {
+
+	private static volatile long sink;
+
+	public static void main(String[] args) throws Exception {
+		int producers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int events = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		final long cost = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+		long work = args.length > 3 ? Long.parseLong(args[3]) : 20000;
+
+		for (int round = 0; round < 3; round++) {
+			final Object monitor = new Object();
+			long locked = run(producers, events, work, new Publisher() {
+				@Override
+				public void publish(int type, Object payload) {
+					synchronized (monitor) {
+						deliver(cost);
+					}
+				}
+			});
+
+			final EventDispatcher dispatcher = new EventDispatcher(new EventDispatcher.Handler() {
+				@Override
+				public void onEvent(int type, Object payload) {
+					deliver(cost);
+				}
+			});
+			long ring = run(producers, events, work, new Publisher() {
+				@Override
+				public void publish(int type, Object payload) {
+					dispatcher.publish(type, payload);
+				}
+			});
+			dispatcher.close();
+			dispatcher.join();
+
+			long total = (long) producers * events;
+			System.out.println(String.format(Locale.US, "synchronized %8.1f ns/event   ring %8.1f ns/event   %s",
+					(double) locked / total, (double) ring / total, dispatcher));
+		}
+	}
+
+	private interface Publisher {
+
+		public void publish(int type, Object payload);
+
+	}
+
+	/**
+	 * Run the producers and return the total time they spent publishing (ns).
+	 */
+	private static long run(int producers, final int events, final long work, final Publisher publisher)
+			throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final long[] times = new long[producers];
+		Thread[] threads = new Thread[producers];
+
+		for (int i = 0; i < producers; i++) {
+			final int id = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					long time = 0;
+					for (int e = 0; e < events; e++) {
+						deliver(work);
+						long t = System.nanoTime();
+						publisher.publish(1, null);
+						time += System.nanoTime() - t;
+					}
+					times[id] = time;
+				}
+			};
+			threads[i].start();
+		}
+
+		start.countDown();
+		long total = 0;
+		for (int i = 0; i < producers; i++) {
+			threads[i].join();
+			total += times[i];
+		}
+		return total;
+	}
+
+	/**
+	 * Busy work of the given duration.
+	 */
+	private static void deliver(long nanos) {
+		long end = System.nanoTime() + nanos;
+		long s = 0;
+		while (System.nanoTime() < end) {
+			s++;
+		}
+		sink += s;
+	}
+
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non negative values (e.g. nanoseconds) with logarithmic buckets, in the style of HdrHistogram: every
+ * power of 2 is split in 8 linear sub-buckets, so the relative error is at most 12.5% over the whole range of long,
+ * with a fixed size (488 counters) and no allocations when recording.
+ * 
+ * This class is thread safe: {@link #record(long)} is lock-free.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class Histogram {
+
+	// sub-buckets per power of 2
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a value (negative values are recorded as 0).
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+		}
+	}
+
+	/**
+	 * Copy of the current values.
+	 */
+	public Snapshot snapshot() {
+		long[] c = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			c[i] = counts.get(i);
+			total += c[i];
+		}
+		return new Snapshot(c, total, sum.get(), max.get());
+	}
+
+	/**
+	 * Bucket of a value.
+	 */
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (magnitude - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Smallest value of a bucket.
+	 */
+	static long lowerBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int magnitude = index / SUB_BUCKETS + SUB_BITS - 1;
+		int sub = index % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + sub) << (magnitude - SUB_BITS);
+	}
+
+	/**
+	 * Immutable copy of a histogram.
+	 */
+	public static class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		Snapshot(long[] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * Value below which the given fraction of the values falls (upper bound of its bucket, at most the maximum).
+		 * 
+		 * @param quantile
+		 *            Between 0 and 1 (e.g. 0.99).
+		 */
+		public long getValueAt(double quantile) {
+			if (count == 0) {
+				return 0;
+			}
+
+			long rank = (long) Math.ceil(quantile * count);
+			if (rank < 1) {
+				rank = 1;
+			}
+
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					long upper = i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+					return Math.min(upper, max);
+				}
+			}
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "count=%d mean=%.0f p50=%d p90=%d p99=%d max=%d", count, getMean(),
+					getValueAt(0.5), getValueAt(0.9), getValueAt(0.99), max);
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import eu.fbk.trec.andweight.model.InPacket;
+
+/**
+ * Aggregate metrics of all the sessions, and the sessions in progress.
+ * 
+ * Counters: sessions, bytes read, frames by {@link InPacket.Type}, invalid measures, parse errors, duplicate measures,
+ * acks written.
+ * Histograms (nanoseconds): parse time of a frame, latency from the read of a frame to its ack, session duration,
+ * latency from the accept of a connection to its first byte, time from the end of a session to the next accept.
+ * Hand-off to the consumers: depth of the queues, time spent blocked on a full queue, dropped and spilled measurements.
+ * 
+ * Recording is lock-free and allocation-free, so the metrics can stay enabled in production; {@link #snapshot()}
+ * copies the current values for polling.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class MetricsRegistry {
+
+	private static final MetricsRegistry GLOBAL = new MetricsRegistry();
+
+	/**
+	 * Registry used by the sessions.
+	 */
+	public static MetricsRegistry global() {
+		return GLOBAL;
+	}
+
+	// counters
+	final AtomicLong sessions = new AtomicLong();
+	final AtomicLong bytesRead = new AtomicLong();
+	final AtomicLongArray frames = new AtomicLongArray(InPacket.Type.values().length);
+	final AtomicLong invalidMeasures = new AtomicLong();
+	final AtomicLong parseErrors = new AtomicLong();
+	final AtomicLong duplicates = new AtomicLong();
+	final AtomicLong acks = new AtomicLong();
+
+	// histograms
+	final Histogram parseTime = new Histogram();
+	final Histogram readToAck = new Histogram();
+	final Histogram sessionDuration = new Histogram();
+	final Histogram firstByte = new Histogram();
+	final Histogram reconnect = new Histogram();
+
+	// hand-off queues
+	final Histogram queueDepth = new Histogram();
+	final Histogram queueBlocked = new Histogram();
+	final AtomicLong queueDropped = new AtomicLong();
+	final AtomicLong queueSpilled = new AtomicLong();
+
+	// sessions in progress
+	private final AtomicLong ids = new AtomicLong();
+	private final ConcurrentMap<Long, SessionMetrics> active = new ConcurrentHashMap<>();
+
+	/**
+	 * Start the metrics of a new session.
+	 */
+	public SessionMetrics openSession() {
+		SessionMetrics session = new SessionMetrics(this, ids.incrementAndGet());
+		active.put(session.getId(), session);
+		sessions.incrementAndGet();
+		return session;
+	}
+
+	/**
+	 * Called by {@link SessionMetrics#close()}.
+	 */
+	void closeSession(SessionMetrics session, long duration) {
+		active.remove(session.getId());
+		sessionDuration.record(duration);
+	}
+
+	/**
+	 * A connection has been accepted.
+	 * 
+	 * @param sinceDisconnect
+	 *            Time since the end of the previous session of the same listener (ns), or a negative value if unknown.
+	 */
+	public void accepted(long sinceDisconnect) {
+		if (sinceDisconnect >= 0) {
+			reconnect.record(sinceDisconnect);
+		}
+	}
+
+	/**
+	 * A measurement has been queued for the consumers.
+	 * 
+	 * @param depth
+	 *            Measurements in the queue, this one included.
+	 */
+	public void queued(int depth) {
+		queueDepth.record(depth);
+	}
+
+	/**
+	 * A producer has waited for a full queue.
+	 * 
+	 * @param nanos
+	 *            Time spent blocked.
+	 */
+	public void queueBlocked(long nanos) {
+		queueBlocked.record(nanos);
+	}
+
+	/**
+	 * A measurement has been dropped by a full queue.
+	 */
+	public void queueDropped() {
+		queueDropped.incrementAndGet();
+	}
+
+	/**
+	 * A measurement has been spilled to disk by a full queue.
+	 */
+	public void queueSpilled() {
+		queueSpilled.incrementAndGet();
+	}
+
+	/**
+	 * Copy of the current values.
+	 */
+	public MetricsSnapshot snapshot() {
+		long[] f = new long[frames.length()];
+		for (int i = 0; i < f.length; i++) {
+			f[i] = frames.get(i);
+		}
+
+		List<SessionMetrics.Snapshot> sessionSnapshots = new ArrayList<>();
+		for (SessionMetrics s : active.values()) {
+			sessionSnapshots.add(s.snapshot());
+		}
+
+		return new MetricsSnapshot(sessions.get(), bytesRead.get(), f, invalidMeasures.get(), parseErrors.get(),
+				duplicates.get(), acks.get(), parseTime.snapshot(), readToAck.snapshot(), sessionDuration.snapshot(),
+				firstByte.snapshot(), reconnect.snapshot(), queueDepth.snapshot(), queueBlocked.snapshot(),
+				queueDropped.get(), queueSpilled.get(), sessionSnapshots);
+	}
+
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.metrics;
+
+import java.util.Collections;
+import java.util.List;
+
+import eu.fbk.trec.andweight.model.InPacket;
+
+/**
+ * Immutable copy of the {@link MetricsRegistry}, for polling.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class MetricsSnapshot {
+
+	private final long sessions;
+	private final long bytesRead;
+	private final long[] frames;
+	private final long invalidMeasures;
+	private final long parseErrors;
+	private final long duplicates;
+	private final long acks;
+	private final Histogram.Snapshot parseTime;
+	private final Histogram.Snapshot readToAck;
+	private final Histogram.Snapshot sessionDuration;
+	private final Histogram.Snapshot firstByte;
+	private final Histogram.Snapshot reconnect;
+	private final Histogram.Snapshot queueDepth;
+	private final Histogram.Snapshot queueBlocked;
+	private final long queueDropped;
+	private final long queueSpilled;
+	private final List<SessionMetrics.Snapshot> activeSessions;
+
+	MetricsSnapshot(long sessions, long bytesRead, long[] frames, long invalidMeasures, long parseErrors,
+			long duplicates, long acks, Histogram.Snapshot parseTime, Histogram.Snapshot readToAck,
+			Histogram.Snapshot sessionDuration, Histogram.Snapshot firstByte, Histogram.Snapshot reconnect,
+			Histogram.Snapshot queueDepth, Histogram.Snapshot queueBlocked, long queueDropped, long queueSpilled,
+			List<SessionMetrics.Snapshot> activeSessions) {
+		this.sessions = sessions;
+		this.bytesRead = bytesRead;
+		this.frames = frames;
+		this.invalidMeasures = invalidMeasures;
+		this.parseErrors = parseErrors;
+		this.duplicates = duplicates;
+		this.acks = acks;
+		this.parseTime = parseTime;
+		this.readToAck = readToAck;
+		this.sessionDuration = sessionDuration;
+		this.firstByte = firstByte;
+		this.reconnect = reconnect;
+		this.queueDepth = queueDepth;
+		this.queueBlocked = queueBlocked;
+		this.queueDropped = queueDropped;
+		this.queueSpilled = queueSpilled;
+		this.activeSessions = Collections.unmodifiableList(activeSessions);
+	}
+
+	/**
+	 * Sessions started.
+	 */
+	public long getSessions() {
+		return sessions;
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * Frames of the given type.
+	 */
+	public long getFrames(InPacket.Type type) {
+		return frames[type.ordinal()];
+	}
+
+	public long getInvalidMeasures() {
+		return invalidMeasures;
+	}
+
+	public long getParseErrors() {
+		return parseErrors;
+	}
+
+	/**
+	 * Measures sent again by the weight scales (acknowledged, not delivered).
+	 */
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	public long getAcks() {
+		return acks;
+	}
+
+	/**
+	 * Decode time of a frame (ns).
+	 */
+	public Histogram.Snapshot getParseTime() {
+		return parseTime;
+	}
+
+	/**
+	 * Time from the read of a weight frame to the write of its ack (ns).
+	 */
+	public Histogram.Snapshot getReadToAck() {
+		return readToAck;
+	}
+
+	/**
+	 * Duration of the ended sessions (ns).
+	 */
+	public Histogram.Snapshot getSessionDuration() {
+		return sessionDuration;
+	}
+
+	/**
+	 * Time from the accept of a connection to its first byte (ns).
+	 */
+	public Histogram.Snapshot getFirstByte() {
+		return firstByte;
+	}
+
+	/**
+	 * Time from the end of a session to the accept of the next connection by the same listener (ns): how long the
+	 * weight scales take to reconnect.
+	 */
+	public Histogram.Snapshot getReconnect() {
+		return reconnect;
+	}
+
+	/**
+	 * Depth of the hand-off queues when a measurement is queued.
+	 */
+	public Histogram.Snapshot getQueueDepth() {
+		return queueDepth;
+	}
+
+	/**
+	 * Time spent by the sessions waiting for a full hand-off queue (ns).
+	 */
+	public Histogram.Snapshot getQueueBlocked() {
+		return queueBlocked;
+	}
+
+	/**
+	 * Measurements dropped by a full hand-off queue.
+	 */
+	public long getQueueDropped() {
+		return queueDropped;
+	}
+
+	/**
+	 * Measurements spilled to disk by a full hand-off queue.
+	 */
+	public long getQueueSpilled() {
+		return queueSpilled;
+	}
+
+	/**
+	 * Sessions in progress.
+	 */
+	public List<SessionMetrics.Snapshot> getActiveSessions() {
+		return activeSessions;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("sessions=").append(sessions).append(" (").append(activeSessions.size()).append(" active)");
+		sb.append(" bytesRead=").append(bytesRead);
+		for (InPacket.Type type : InPacket.Type.values()) {
+			sb.append(' ').append(type).append('=').append(frames[type.ordinal()]);
+		}
+		sb.append(" invalidMeasures=").append(invalidMeasures);
+		sb.append(" parseErrors=").append(parseErrors);
+		sb.append(" duplicates=").append(duplicates);
+		sb.append(" acks=").append(acks);
+		sb.append("\nparseTime[ns] ").append(parseTime);
+		sb.append("\nreadToAck[ns] ").append(readToAck);
+		sb.append("\nsessionDuration[ns] ").append(sessionDuration);
+		sb.append("\nfirstByte[ns] ").append(firstByte);
+		sb.append("\nreconnect[ns] ").append(reconnect);
+		sb.append("\nqueueDepth ").append(queueDepth);
+		sb.append("\nqueueBlocked[ns] ").append(queueBlocked);
+		sb.append(" dropped=").append(queueDropped).append(" spilled=").append(queueSpilled);
+		for (SessionMetrics.Snapshot s : activeSessions) {
+			sb.append('\n').append(s);
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,247 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.metrics;
+
+import eu.fbk.trec.andweight.model.InPacket;
+
+/**
+ * Metrics of a single session, also added to the aggregate of the {@link MetricsRegistry}.
+ * 
+ * The methods are called by the thread which drives the session; {@link #snapshot()} can be called by any thread
+ * (the values are volatile).
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class SessionMetrics {
+
+	private final MetricsRegistry registry;
+	private final long id;
+	private final long start = System.nanoTime();
+	private volatile String name;
+
+	// counters of this session
+	private volatile long bytesRead;
+	private volatile long frames;
+	private volatile long invalidMeasures;
+	private volatile long parseErrors;
+	private volatile long duplicates;
+	private volatile long acks;
+
+	// read to ack latency of this session
+	private volatile long latencySum;
+	private volatile long latencyMax;
+
+	// accept to first byte (-1 until the first byte)
+	private volatile long firstByte = -1;
+
+	private boolean closed;
+
+	SessionMetrics(MetricsRegistry registry, long id) {
+		this.registry = registry;
+		this.id = id;
+		this.name = "session-" + id;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Name of the session (e.g. the address of the weight scale).
+	 */
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * The first byte of the session has been read (recorded only once).
+	 * 
+	 * @param nanos
+	 *            Time since the connection was accepted.
+	 */
+	public void firstByte(long nanos) {
+		if (firstByte >= 0) {
+			return;
+		}
+		firstByte = nanos;
+		registry.firstByte.record(nanos);
+	}
+
+	public void bytesRead(int bytes) {
+		bytesRead += bytes;
+		registry.bytesRead.addAndGet(bytes);
+	}
+
+	/**
+	 * A frame has been decoded.
+	 * 
+	 * @param nanos
+	 *            Time spent decoding it.
+	 */
+	public void frame(InPacket.Type type, long nanos) {
+		frames++;
+		registry.frames.incrementAndGet(type.ordinal());
+		registry.parseTime.record(nanos);
+	}
+
+	public void invalidMeasure() {
+		invalidMeasures++;
+		registry.invalidMeasures.incrementAndGet();
+	}
+
+	public void parseError() {
+		parseErrors++;
+		registry.parseErrors.incrementAndGet();
+	}
+
+	/**
+	 * A measure already received has been discarded.
+	 */
+	public void duplicate() {
+		duplicates++;
+		registry.duplicates.incrementAndGet();
+	}
+
+	/**
+	 * An ack has been written.
+	 * 
+	 * @param nanos
+	 *            Time since the frame was read.
+	 */
+	public void ack(long nanos) {
+		acks++;
+		latencySum += nanos;
+		if (nanos > latencyMax) {
+			latencyMax = nanos;
+		}
+		registry.acks.incrementAndGet();
+		registry.readToAck.record(nanos);
+	}
+
+	/**
+	 * End of the session.
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		registry.closeSession(this, System.nanoTime() - start);
+	}
+
+	/**
+	 * Copy of the current values.
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Immutable copy of the metrics of a session.
+	 */
+	public static class Snapshot {
+		private final long id;
+		private final String name;
+		private final long duration;
+		private final long firstByte;
+		private final long bytesRead;
+		private final long frames;
+		private final long invalidMeasures;
+		private final long parseErrors;
+		private final long duplicates;
+		private final long acks;
+		private final long meanReadToAck;
+		private final long maxReadToAck;
+
+		Snapshot(SessionMetrics s) {
+			id = s.id;
+			name = s.name;
+			duration = System.nanoTime() - s.start;
+			firstByte = s.firstByte;
+			bytesRead = s.bytesRead;
+			frames = s.frames;
+			invalidMeasures = s.invalidMeasures;
+			parseErrors = s.parseErrors;
+			duplicates = s.duplicates;
+			acks = s.acks;
+			meanReadToAck = acks == 0 ? 0 : s.latencySum / acks;
+			maxReadToAck = s.latencyMax;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Duration until the snapshot (ns).
+		 */
+		public long getDuration() {
+			return duration;
+		}
+
+		/**
+		 * Time from the accept to the first byte (ns), or -1 if nothing has been read yet.
+		 */
+		public long getFirstByte() {
+			return firstByte;
+		}
+
+		public long getBytesRead() {
+			return bytesRead;
+		}
+
+		public long getFrames() {
+			return frames;
+		}
+
+		public long getInvalidMeasures() {
+			return invalidMeasures;
+		}
+
+		public long getParseErrors() {
+			return parseErrors;
+		}
+
+		public long getDuplicates() {
+			return duplicates;
+		}
+
+		public long getAcks() {
+			return acks;
+		}
+
+		/**
+		 * Mean time from the read of a weight frame to its ack (ns).
+		 */
+		public long getMeanReadToAck() {
+			return meanReadToAck;
+		}
+
+		/**
+		 * Maximum time from the read of a weight frame to its ack (ns).
+		 */
+		public long getMaxReadToAck() {
+			return maxReadToAck;
+		}
+
+		@Override
+		public String toString() {
+			return name + " [duration=" + duration / 1000000 + "ms, firstByte=" + firstByte + "ns, bytesRead="
+					+ bytesRead + ", frames=" + frames + ", invalidMeasures=" + invalidMeasures + ", parseErrors="
+					+ parseErrors + ", duplicates=" + duplicates + ", acks=" + acks + ", meanReadToAck=" + meanReadToAck
+					+ "ns, maxReadToAck=" + maxReadToAck + "ns]";
+		}
+	}
+
+}
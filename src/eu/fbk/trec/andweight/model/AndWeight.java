@@ -15,12 +15,23 @@ import java.util.Date;
 public class AndWeight implements Serializable {
 	private static final long serialVersionUID = 7369085597368033079L;
 
+	/**
+	 * Patient number of the weights without it.
+	 */
+	public static final int NO_PATIENT = -1;
+
 	private float weight;
 	private Date measureDate;
+	private int patient;
 
 	public AndWeight(float weight, Date measureDate) {
+		this(weight, measureDate, NO_PATIENT);
+	}
+
+	public AndWeight(float weight, Date measureDate, int patient) {
 		this.weight = weight;
 		this.measureDate = measureDate;
+		this.patient = patient;
 	}
 
 	public float getWeight() {
@@ -31,9 +42,16 @@ public class AndWeight implements Serializable {
 		return measureDate;
 	}
 
+	/**
+	 * Patient number selected on the weight scale, or {@link #NO_PATIENT}.
+	 */
+	public int getPatient() {
+		return patient;
+	}
+
 	@Override
 	public String toString() {
-		return "Weight [weight=" + weight + ", measureDate=" + measureDate + "]";
+		return "Weight [weight=" + weight + ", measureDate=" + measureDate + ", patient=" + patient + "]";
 	}
 
 }
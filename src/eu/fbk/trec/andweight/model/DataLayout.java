@@ -0,0 +1,196 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.model;
+
+import java.util.Arrays;
+
+import eu.fbk.trec.andweight.model.InPacket.Type;
+
+/**
+ * Layout of the measurement section of a data packet (after the 60 bytes header common to the A&amp;D devices): the
+ * length of the section, its first byte and the offset and length of every field.
+ * 
+ * The layouts are registered by model in the {@link DecoderRegistry}; {@link InPacketView} reads the fields through
+ * the layout of the packet, so a new device needs a new table, not new code. The offsets are relative to the start of
+ * the section. The registry keeps a frozen copy of a layout, so the registered layouts cannot be changed.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class DataLayout {
+
+	/**
+	 * Fields of a measurement section.
+	 */
+	public enum Field {
+		// status of the measure: 'T' or 'L' valid, 'E' invalid
+		STATUS,
+		// weight (ASCII) and its unit ("kg" or "lb")
+		WEIGHT, UNIT,
+		// patient number (2 ASCII digits)
+		PATIENT,
+		// blood pressure (mmHg) and pulse (beats per minute), ASCII
+		SYSTOLIC, DIASTOLIC, PULSE
+	}
+
+	// offset and length of the fields (-1 if not present)
+	private final int[] offsets = new int[Field.values().length];
+	private final int[] lengths = new int[Field.values().length];
+
+	private final Type type;
+	private final int length;
+	private final byte marker;
+
+	// true for the copies kept by the registry
+	private final boolean frozen;
+
+	/**
+	 * Layout of the weight section of the UC-351PBT-Ci: S T , value(7) unit(2) ... patient(2) CR LF.
+	 */
+	public static DataLayout weight() {
+		return new DataLayout(Type.WEIGHT, InPacket.WEIGHT_LENGHT, 'S')
+				.set(Field.STATUS, 1, 1)
+				.set(Field.WEIGHT, 3, 7)
+				.set(Field.UNIT, 10, 2)
+				.set(Field.PATIENT, 17, 2);
+	}
+
+	/**
+	 * Create a layout without fields.
+	 * 
+	 * @param type
+	 *            Type of the packets with this layout.
+	 * @param length
+	 *            Length of the section (the body length in the header).
+	 * @param marker
+	 *            First byte of the section.
+	 */
+	public DataLayout(Type type, int length, char marker) {
+		if (type == null) {
+			throw new RuntimeException("Type cannot be null!");
+		}
+		if (length < 1) {
+			throw new RuntimeException("length must be positive!");
+		}
+		this.type = type;
+		this.length = length;
+		this.marker = (byte) marker;
+		this.frozen = false;
+		Arrays.fill(offsets, -1);
+	}
+
+	/**
+	 * Create a frozen copy of a layout (used on registration).
+	 */
+	DataLayout(DataLayout layout) {
+		this.type = layout.type;
+		this.length = layout.length;
+		this.marker = layout.marker;
+		this.frozen = true;
+		System.arraycopy(layout.offsets, 0, offsets, 0, offsets.length);
+		System.arraycopy(layout.lengths, 0, lengths, 0, lengths.length);
+	}
+
+	/**
+	 * Set the position of a field.
+	 * 
+	 * @param offset
+	 *            Offset from the start of the section.
+	 * @param length
+	 *            Length of the field.
+	 * @return This layout.
+	 */
+	public DataLayout set(Field field, int offset, int length) {
+		if (frozen) {
+			throw new RuntimeException("A registered layout cannot be changed!");
+		}
+		if (offset < 0 || length < 1 || offset + length > this.length) {
+			throw new RuntimeException("Field " + field + " out of the section!");
+		}
+		offsets[field.ordinal()] = offset;
+		lengths[field.ordinal()] = length;
+		return this;
+	}
+
+	/**
+	 * Check that the type is a measurement and that the fields it needs are present (called on registration).
+	 */
+	void validate() {
+		switch (type) {
+		case WEIGHT:
+			require(Field.STATUS, Field.WEIGHT, Field.UNIT, Field.PATIENT);
+			break;
+		case BLOOD_PRESSURE:
+			require(Field.SYSTOLIC, Field.DIASTOLIC, Field.PULSE);
+			break;
+		default:
+			throw new RuntimeException("A layout must be of a measurement type, not " + type);
+		}
+	}
+
+	private void require(Field... fields) {
+		for (Field f : fields) {
+			if (!has(f)) {
+				throw new RuntimeException("A " + type + " layout needs the field " + f);
+			}
+		}
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Length of the section.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * First byte of the section.
+	 */
+	public byte getMarker() {
+		return marker;
+	}
+
+	/**
+	 * True if the field is present in this layout.
+	 */
+	public boolean has(Field field) {
+		return offsets[field.ordinal()] >= 0;
+	}
+
+	/**
+	 * Offset of a field from the start of the section, or -1 if not present.
+	 */
+	public int offset(Field field) {
+		return offsets[field.ordinal()];
+	}
+
+	/**
+	 * Length of a field.
+	 */
+	public int length(Field field) {
+		return lengths[field.ordinal()];
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("DataLayout [type=").append(type).append(", length=").append(length)
+				.append(", marker=").append((char) marker);
+		for (Field f : Field.values()) {
+			if (has(f)) {
+				sb.append(", ").append(f).append('=').append(offset(f)).append('+').append(length(f));
+			}
+		}
+		return sb.append(']').toString();
+	}
+
+}
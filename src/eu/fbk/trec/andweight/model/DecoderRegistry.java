@@ -0,0 +1,101 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.model;
+
+/**
+ * Layouts of the data packets, by device model (bytes 6 and 7 of the header) and first byte of the section.
+ * 
+ * The look-up is a walk of a fixed table (model byte 6, model byte 7, section marker): it costs the same for any
+ * number of registered models, so adding a device does not slow down the others. The UC-351PBT-Ci weight scale (42 01)
+ * is registered by default; other A&amp;D devices with the same header (e.g. blood pressure monitors) are added with
+ * {@link #register(int, int, DataLayout)}, using the model bytes and the layout of their documentation.
+ * 
+ * This class is thread safe: the look-ups are lock-free, a registration copies the table and publishes it.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class DecoderRegistry {
+
+	// model of the UC-351PBT-Ci weight scale
+	public static final int UC_351PBT_CI_0 = 0x42;
+	public static final int UC_351PBT_CI_1 = 0x01;
+
+	private static final DecoderRegistry GLOBAL = new DecoderRegistry();
+
+	static {
+		GLOBAL.register(UC_351PBT_CI_0, UC_351PBT_CI_1, DataLayout.weight());
+	}
+
+	/**
+	 * Registry used by the packets.
+	 */
+	public static DecoderRegistry global() {
+		return GLOBAL;
+	}
+
+	// [model byte 6][model byte 7] -> [section marker] -> layout (null if unknown)
+	private volatile DataLayout[][][] table = new DataLayout[256][][];
+
+	/**
+	 * Add a layout for a device model (replacing the layout of the model with the same marker, if any). The registry
+	 * keeps a frozen copy: later changes to the layout do not affect the look-ups.
+	 * 
+	 * @param model0
+	 *            Byte 6 of the header.
+	 * @param model1
+	 *            Byte 7 of the header.
+	 */
+	public synchronized void register(int model0, int model1, DataLayout layout) {
+		if (layout == null) {
+			throw new RuntimeException("Layout cannot be null!");
+		}
+		if (model0 < 0 || model0 > 0xff || model1 < 0 || model1 > 0xff) {
+			throw new RuntimeException("Invalid model: " + model0 + " " + model1);
+		}
+
+		layout.validate();
+		layout = new DataLayout(layout);
+
+		DataLayout[][][] t = table.clone();
+		DataLayout[][] models = t[model0] == null ? new DataLayout[256][] : t[model0].clone();
+		DataLayout[] layouts = models[model1] == null ? new DataLayout[256] : models[model1].clone();
+
+		layouts[layout.getMarker() & 0xff] = layout;
+		models[model1] = layouts;
+		t[model0] = models;
+		table = t;
+	}
+
+	/**
+	 * True if the model has at least one layout.
+	 */
+	public boolean isKnown(byte model0, byte model1) {
+		return layouts(model0, model1) != null;
+	}
+
+	/**
+	 * Layout of a section of a model.
+	 * 
+	 * @return The layout, or null if the model or the marker is unknown.
+	 */
+	public DataLayout lookup(byte model0, byte model1, byte marker) {
+		DataLayout[] layouts = layouts(model0, model1);
+		return layouts == null ? null : layouts[marker & 0xff];
+	}
+
+	/**
+	 * Layouts of a model by section marker (not to be modified), or null if the model is unknown.
+	 */
+	DataLayout[] layouts(byte model0, byte model1) {
+		DataLayout[][] models = table[model0 & 0xff];
+		return models == null ? null : models[model1 & 0xff];
+	}
+
+}
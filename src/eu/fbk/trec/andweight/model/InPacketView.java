@@ -0,0 +1,469 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.model;
+
+import java.util.Date;
+
+import eu.fbk.trec.andweight.exceptions.InvalidMeasureException;
+import eu.fbk.trec.andweight.exceptions.PacketExpection;
+import eu.fbk.trec.andweight.model.InPacket.Type;
+import eu.fbk.trec.andweight.utils.HexUtil;
+
+/**
+ * Flyweight view of an incoming packet from the weight scale.
+ * 
+ * The view does not own the data: every field is read in place from a shared backing array, so the same
+ * instance can be re-pointed at the next frame (see {@link #wrap(byte[], int, int)}) without any allocation. The
+ * content of the view is valid only until the backing array is overwritten.
+ * 
+ * The data packets are classified with the {@link DecoderRegistry}: the model bytes of the header select the
+ * {@link DataLayout} of the measurement, which gives the offsets of its fields.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class InPacketView {
+
+	// start of the measurement section (the offsets of its fields are in the DataLayout)
+	private static final int SECTION = InPacket.HEADER_LENGHT;
+
+	// offsets of the model
+	private static final int MODEL_0 = 6;
+	private static final int MODEL_1 = 7;
+
+	// patient info request: P W R Q P I , X X
+	private static final int REQUEST_PATIENT = 7;
+
+	// offsets of the dates
+	private static final int MEASURE_DATE = 9;
+	private static final int TRASMISSION_DATE = 16;
+
+	// error messages
+	private static final String NOT_DATA = "Not a data packet: ";
+	private static final String NOT_A_WEIGHT = "Not a weight packet: ";
+	private static final String NOT_A_REQUEST = "Not a patient info request: ";
+	private static final String NO_FIELD = "Field not in the packet: ";
+
+	// raw data
+	private byte[] packet;
+	private int offset;
+	private int length;
+
+	// layouts of the data packets
+	private final DecoderRegistry registry;
+
+	// cached classification (layout of the section, null if not a known measurement)
+	private Type type;
+	private DataLayout layout;
+
+	// dates decoder (created on first use, reused for the next frames)
+	private TimestampDecoder timestamps;
+
+	/**
+	 * Create a view which decodes the models of the global {@link DecoderRegistry}.
+	 */
+	public InPacketView() {
+		this(DecoderRegistry.global());
+	}
+
+	/**
+	 * Create a view which decodes the models of the given registry.
+	 */
+	public InPacketView(DecoderRegistry registry) {
+		if (registry == null) {
+			throw new RuntimeException("Registry cannot be null!");
+		}
+		this.registry = registry;
+	}
+
+	/**
+	 * Point this view at a frame.
+	 * 
+	 * @param buffer
+	 *            Backing array (not copied).
+	 * @param offset
+	 *            Offset of the frame in the buffer.
+	 * @param length
+	 *            Length of the frame.
+	 * @return This view.
+	 */
+	public InPacketView wrap(byte[] buffer, int offset, int length) {
+		this.packet = buffer;
+		this.offset = offset;
+		this.length = length;
+		this.type = null;
+		this.layout = null;
+		return this;
+	}
+
+	/**
+	 * Length of the frame.
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Read a byte of the frame.
+	 */
+	private byte at(int index) {
+		return packet[offset + index];
+	}
+
+	/**
+	 * Classify the frame in a single pass, dispatching on the first byte and on the length.
+	 */
+	private Type classify() {
+		if (length == 0) {
+			return Type.UNKNOWN;
+		}
+
+		switch (at(0)) {
+		case 0x02:
+			return classifyData();
+
+		case 0x50:
+			return classifyControl();
+
+		default:
+			return Type.UNKNOWN;
+		}
+	}
+
+	/**
+	 * Classify a frame starting with 0x02.
+	 */
+	private Type classifyData() {
+
+		// check length
+		if (length < InPacket.HEADER_LENGHT) {
+			return Type.UNKNOWN;
+		}
+
+		// the model must be registered
+		DataLayout[] layouts = registry.layouts(at(MODEL_0), at(MODEL_1));
+		if (layouts == null) {
+			return Type.UNKNOWN;
+		}
+
+		// the section is a measurement of the model if its marker and its length (02 00 + length) match a layout
+		if (length > SECTION && at(1) == 0x00) {
+			DataLayout l = layouts[at(SECTION) & 0xff];
+			if (l != null && length == SECTION + l.getLength() && (at(2) & 0xff) == (l.getLength() & 0xff)) {
+				layout = l;
+				return l.getType();
+			}
+		}
+
+		return Type.DATA_NOT_WEIGHT;
+	}
+
+	/**
+	 * Classify a frame starting with 0x50 ('P').
+	 */
+	private Type classifyControl() {
+
+		// both the control packets start with P W
+		if (length < 6 || at(1) != 0x57) {
+			return Type.UNKNOWN;
+		}
+
+		// patient info packet format
+		// P W R Q P I , X X (XX -> patient number)
+		if (length == 9 && at(2) == 0x52 && at(3) == 0x51 && at(4) == 0x50 && at(5) == 0x49 && at(6) == 0x2C) {
+			return Type.REQUEST_PATIENT_INFO;
+		}
+
+		// cannot wait packet format
+		// P W C A P I
+		if (length == 6 && at(2) == 0x43 && at(3) == 0x41 && at(4) == 0x50 && at(5) == 0x49) {
+			return Type.CANNOT_WAIT_ANYMORE_FOR_PATIENT_INFO;
+		}
+
+		return Type.UNKNOWN;
+	}
+
+	/**
+	 * Check if this packet contains data (e.g. a weight measure).
+	 */
+	public boolean isData() {
+		Type t = getType();
+		return t == Type.WEIGHT || t == Type.BLOOD_PRESSURE || t == Type.DATA_NOT_WEIGHT;
+	}
+
+	/**
+	 * Check if this packet contains a weight measure.
+	 */
+	public boolean isWeight() {
+		return getType() == Type.WEIGHT;
+	}
+
+	/**
+	 * Layout of the measurement section, or null if the packet is not a known measurement.
+	 */
+	public DataLayout getLayout() {
+		getType();
+		return layout;
+	}
+
+	/**
+	 * Return the type of this packet. The packet is classified only once, the result is cached until the next
+	 * {@link #wrap(byte[], int, int)}.
+	 */
+	public Type getType() {
+		if (type == null) {
+			type = classify();
+		}
+		return type;
+	}
+
+	/**
+	 * Get the measure Date.
+	 * 
+	 * @throws PacketExpection
+	 */
+	public Date getMeasureDate() throws PacketExpection {
+		return new Date(getMeasureTime() * 1000);
+	}
+
+	/**
+	 * Get the measure time.
+	 * 
+	 * @return Epoch seconds.
+	 * @throws PacketExpection
+	 */
+	public long getMeasureTime() throws PacketExpection {
+		return time(MEASURE_DATE);
+	}
+
+	/**
+	 * Get the transmission Date.
+	 * 
+	 * @throws PacketExpection
+	 */
+	public Date getTrasmissionDate() throws PacketExpection {
+		return new Date(getTrasmissionTime() * 1000);
+	}
+
+	/**
+	 * Get the transmission time.
+	 * 
+	 * @return Epoch seconds.
+	 * @throws PacketExpection
+	 */
+	public long getTrasmissionTime() throws PacketExpection {
+		return time(TRASMISSION_DATE);
+	}
+
+	/**
+	 * Decode a date of a data packet.
+	 */
+	private long time(int index) throws PacketExpection {
+		if (!isData()) {
+			throw new PacketExpection(NOT_DATA + dump());
+		}
+
+		if (timestamps == null) {
+			timestamps = new TimestampDecoder();
+		}
+
+		return timestamps.decode(packet, offset + index);
+	}
+
+	/**
+	 * Get the patient number.
+	 * 
+	 * @throws PacketExpection
+	 */
+	public int getPatientNumber() throws PacketExpection {
+
+		// check if weight
+		if (getType() != Type.WEIGHT) {
+			throw new PacketExpection(NOT_A_WEIGHT + dump());
+		}
+
+		// the patient number is made of 2 ASCII digits
+		int patient = SECTION + layout.offset(DataLayout.Field.PATIENT);
+		int tens = at(patient) - '0';
+		int units = at(patient + 1) - '0';
+		if (tens < 0 || tens > 9 || units < 0 || units > 9) {
+			throw new PacketExpection(NOT_A_WEIGHT + dump());
+		}
+
+		return tens * 10 + units;
+	}
+
+	/**
+	 * Get the patient number of a patient info request (PWRQPI,XX).
+	 * 
+	 * @throws PacketExpection
+	 */
+	public int getRequestedPatient() throws PacketExpection {
+
+		// check if patient info request
+		if (getType() != Type.REQUEST_PATIENT_INFO) {
+			throw new PacketExpection(NOT_A_REQUEST + dump());
+		}
+
+		// the patient number is made of 2 ASCII digits
+		int tens = at(REQUEST_PATIENT) - '0';
+		int units = at(REQUEST_PATIENT + 1) - '0';
+		if (tens < 0 || tens > 9 || units < 0 || units > 9) {
+			throw new PacketExpection(NOT_A_REQUEST + dump());
+		}
+
+		return tens * 10 + units;
+	}
+
+	/**
+	 * Return the weight measured contained in the packet.
+	 * 
+	 * @return Weight (in KG)
+	 * @throws PacketExpection
+	 *             If not a weight.
+	 * @throws InvalidMeasureException
+	 *             If the measure is invalid.
+	 */
+	public float getWeight() throws PacketExpection, InvalidMeasureException {
+		return WeightDecoder.toKg(getWeightTenthsOfKg());
+	}
+
+	/**
+	 * Return the weight measured contained in the packet, in fixed point.
+	 * 
+	 * @return Weight (in KG / 10)
+	 * @throws PacketExpection
+	 *             If not a weight.
+	 * @throws InvalidMeasureException
+	 *             If the measure is invalid.
+	 */
+	public int getWeightTenthsOfKg() throws PacketExpection, InvalidMeasureException {
+
+		// check if weight (this checks also the first byte of the section, 0x53 = 'S')
+		if (getType() != Type.WEIGHT) {
+			throw new PacketExpection(NOT_A_WEIGHT + dump());
+		}
+
+		// check measure type
+		// (the fields of a weight are in every WEIGHT layout)
+		switch (at(SECTION + layout.offset(DataLayout.Field.STATUS))) {
+		case 'T':
+		case 'L':
+			// measure valid, do nothing
+			break;
+
+		case 'E':
+			// measure invalid
+			throw new InvalidMeasureException();
+
+		default:
+			// something went wrong
+			throw new PacketExpection(NOT_A_WEIGHT + dump());
+		}
+
+		// compute the weight (lb are converted to kg)
+		int weight = WeightDecoder.tenthsOfKg(packet, offset + SECTION + layout.offset(DataLayout.Field.WEIGHT),
+				layout.length(DataLayout.Field.WEIGHT), offset + SECTION + layout.offset(DataLayout.Field.UNIT));
+		if (weight == WeightDecoder.INVALID) {
+			// something went wrong
+			throw new PacketExpection(NOT_A_WEIGHT + dump());
+		}
+
+		return weight;
+	}
+
+	/**
+	 * Return the systolic pressure: field SYSTOLIC of the layout (e.g. of a blood pressure packet).
+	 * 
+	 * @return Pressure (mmHg).
+	 * @throws PacketExpection
+	 *             If the layout of the packet has not the field, or it is not a number.
+	 */
+	public int getSystolic() throws PacketExpection {
+		return getValue(DataLayout.Field.SYSTOLIC);
+	}
+
+	/**
+	 * Return the diastolic pressure: field DIASTOLIC of the layout (e.g. of a blood pressure packet).
+	 * 
+	 * @return Pressure (mmHg).
+	 * @throws PacketExpection
+	 *             If the layout of the packet has not the field, or it is not a number.
+	 */
+	public int getDiastolic() throws PacketExpection {
+		return getValue(DataLayout.Field.DIASTOLIC);
+	}
+
+	/**
+	 * Return the pulse: field PULSE of the layout (e.g. of a blood pressure packet).
+	 * 
+	 * @return Beats per minute.
+	 * @throws PacketExpection
+	 *             If the layout of the packet has not the field, or it is not a number.
+	 */
+	public int getPulse() throws PacketExpection {
+		return getValue(DataLayout.Field.PULSE);
+	}
+
+	/**
+	 * Return an integer field of the measurement (ASCII digits, the spaces are ignored).
+	 * 
+	 * @throws PacketExpection
+	 *             If the packet has not the field, or it is not a number.
+	 */
+	public int getValue(DataLayout.Field f) throws PacketExpection {
+		int start = SECTION + field(f);
+		int end = start + layout.length(f);
+
+		int value = 0;
+		int digits = 0;
+		for (int i = start; i < end; i++) {
+			int c = at(i);
+			if (c >= '0' && c <= '9') {
+				value = value * 10 + c - '0';
+				digits++;
+			} else if (c != ' ') {
+				throw new PacketExpection(NO_FIELD + f + " " + dump());
+			}
+		}
+		if (digits == 0) {
+			throw new PacketExpection(NO_FIELD + f + " " + dump());
+		}
+		return value;
+	}
+
+	/**
+	 * Offset of a field from the start of the section.
+	 * 
+	 * @throws PacketExpection
+	 *             If the packet is not a measurement with the field.
+	 */
+	private int field(DataLayout.Field f) throws PacketExpection {
+		DataLayout l = getLayout();
+		if (l == null || !l.has(f)) {
+			throw new PacketExpection(NO_FIELD + f + " " + dump());
+		}
+		return l.offset(f);
+	}
+
+	/**
+	 * Hex dump of the frame.
+	 */
+	String dump() {
+		return HexUtil.dump(packet, offset, length);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(6 * length + 32).append("InPacket, dump=");
+		HexUtil.appendDump(sb, packet, offset, length).append(", ascii=");
+		return HexUtil.appendAscii(sb, packet, offset, length).toString();
+	}
+
+}
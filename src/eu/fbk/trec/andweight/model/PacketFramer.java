@@ -0,0 +1,286 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Incremental framer for the byte stream coming from the weight scale.
+ * 
+ * The bytes are read directly into a reusable buffer and the frames are handed out as offset/length views on it, so
+ * no array is allocated or copied per read. A frame split across several reads is kept in the buffer until it is
+ * complete, and a read containing more frames returns all of them. Consumed bytes are discarded by moving the (partial)
+ * tail back to the beginning of the buffer, so that every frame is always contiguous.
+ * 
+ * Usage:
+ * 
+ * <pre>
+ * while (framer.read(input) &gt;= 0) {
+ * 	while (framer.next()) {
+ * 		// framer.buffer(), framer.frameOffset(), framer.frameLength()
+ * 	}
+ * }
+ * </pre>
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class PacketFramer {
+
+	// useful constants
+	private static final int DEFAULT_CAPACITY = 1024;
+	private static final int CONTROL_LENGHT = 6;
+	private static final int REQUEST_PATIENT_INFO_LENGHT = 9;
+	private static final int LENGHT_FIELD_OFFSET = 2;
+	private static final int LENGHT_FIELD_END = 6;
+
+	// control packets prefixes
+	private static final byte[] CANNOT_WAIT = { 0x50, 0x57, 0x43, 0x41, 0x50, 0x49 };
+	private static final byte[] REQUEST_PATIENT_INFO = { 0x50, 0x57, 0x52, 0x51, 0x50, 0x49 };
+
+	// first bytes of the known packets
+	private static final byte DATA_START = 0x02;
+	private static final byte CONTROL_START = 0x50;
+
+	// raw data
+	private final byte[] buffer;
+
+	// view of the buffer for the channels (created on first use)
+	private ByteBuffer byteBuffer;
+
+	// unconsumed bytes are in [start, end)
+	private int start;
+	private int end;
+
+	// last read chunk
+	private int readOffset;
+
+	// current frame
+	private int frameOffset;
+	private int frameLength;
+
+	/**
+	 * Create a framer with the default buffer capacity.
+	 */
+	public PacketFramer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create a framer.
+	 * 
+	 * @param capacity
+	 *            Size of the buffer, i.e. the maximum length of a frame.
+	 */
+	public PacketFramer(int capacity) {
+		if (capacity < InPacket.HEADER_LENGHT + InPacket.WEIGHT_LENGHT) {
+			throw new RuntimeException("Capacity too small: " + capacity);
+		}
+		this.buffer = new byte[capacity];
+	}
+
+	/**
+	 * Read the available bytes from the stream into the buffer.
+	 * 
+	 * @return Number of read bytes, -1 if the end of the stream has been reached.
+	 * @throws IOException
+	 *             If the read fails.
+	 */
+	public int read(InputStream input) throws IOException {
+		compact();
+
+		int bytes = input.read(buffer, end, buffer.length - end);
+		readOffset = end;
+		if (bytes > 0) {
+			end += bytes;
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Read the available bytes from the channel into the buffer.
+	 * 
+	 * @return Number of read bytes (0 if none available on a non-blocking channel), -1 if the end of the stream has
+	 *         been reached.
+	 * @throws IOException
+	 *             If the read fails.
+	 */
+	public int read(ReadableByteChannel channel) throws IOException {
+		compact();
+
+		if (byteBuffer == null) {
+			byteBuffer = ByteBuffer.wrap(buffer);
+		}
+		byteBuffer.limit(buffer.length).position(end);
+
+		int bytes = channel.read(byteBuffer);
+		readOffset = end;
+		if (bytes > 0) {
+			end += bytes;
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Move to the next complete frame, if any.
+	 * 
+	 * @return True if a frame is available via {@link #frameOffset()} and {@link #frameLength()}, false if more bytes
+	 *         are needed.
+	 */
+	public boolean next() {
+		int available = end - start;
+		if (available == 0) {
+			return false;
+		}
+
+		int length;
+		switch (buffer[start]) {
+		case DATA_START:
+			length = dataLength(available);
+			break;
+
+		case CONTROL_START:
+			length = controlLength(available);
+			break;
+
+		default:
+			length = garbageLength(available);
+		}
+
+		// incomplete frame, wait for more bytes
+		if (length == 0) {
+			return false;
+		}
+
+		frameOffset = start;
+		frameLength = length;
+		start += length;
+
+		return true;
+	}
+
+	/**
+	 * Backing buffer of the frames.
+	 */
+	public byte[] buffer() {
+		return buffer;
+	}
+
+	/**
+	 * Offset of the current frame in the buffer.
+	 */
+	public int frameOffset() {
+		return frameOffset;
+	}
+
+	/**
+	 * Length of the current frame.
+	 */
+	public int frameLength() {
+		return frameLength;
+	}
+
+	/**
+	 * Offset in the buffer of the bytes returned by the last read.
+	 */
+	public int readOffset() {
+		return readOffset;
+	}
+
+	/**
+	 * Discard the consumed bytes and make room for the next read.
+	 */
+	private void compact() {
+		if (start == end) {
+			start = 0;
+			end = 0;
+		} else if (end == buffer.length && start > 0) {
+			System.arraycopy(buffer, start, buffer, 0, end - start);
+			end -= start;
+			start = 0;
+		}
+	}
+
+	/**
+	 * Length of a data packet: 60 bytes of header plus the body length (4 bytes, little endian, starting at byte 2).
+	 * 
+	 * @return The length of the frame, 0 if incomplete.
+	 */
+	private int dataLength(int available) {
+		if (available < LENGHT_FIELD_END) {
+			return 0;
+		}
+
+		int i = start + LENGHT_FIELD_OFFSET;
+		long body = (buffer[i] & 0xffL) | (buffer[i + 1] & 0xffL) << 8 | (buffer[i + 2] & 0xffL) << 16
+				| (buffer[i + 3] & 0xffL) << 24;
+
+		// a frame which cannot fit in the buffer is not a valid frame
+		if (body > buffer.length - InPacket.HEADER_LENGHT) {
+			return garbageLength(available);
+		}
+
+		int length = InPacket.HEADER_LENGHT + (int) body;
+		return available < length ? 0 : length;
+	}
+
+	/**
+	 * Length of a control packet (PWCAPI or PWRQPI,XX).
+	 * 
+	 * @return The length of the frame, 0 if incomplete.
+	 */
+	private int controlLength(int available) {
+		boolean cannotWait = matches(CANNOT_WAIT, available);
+		boolean patientInfo = matches(REQUEST_PATIENT_INFO, available);
+
+		if (!cannotWait && !patientInfo) {
+			return garbageLength(available);
+		}
+
+		if (available < CONTROL_LENGHT) {
+			return 0;
+		}
+
+		if (cannotWait) {
+			return CONTROL_LENGHT;
+		}
+
+		return available < REQUEST_PATIENT_INFO_LENGHT ? 0 : REQUEST_PATIENT_INFO_LENGHT;
+	}
+
+	/**
+	 * Check if the available bytes are a prefix of the given control packet.
+	 */
+	private boolean matches(byte[] control, int available) {
+		int n = Math.min(available, control.length);
+		for (int i = 0; i < n; i++) {
+			if (buffer[start + i] != control[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Length of a run of unknown bytes, i.e. up to the next byte which can start a known packet.
+	 */
+	private int garbageLength(int available) {
+		int i = 1;
+		while (i < available && buffer[start + i] != DATA_START && buffer[start + i] != CONTROL_START) {
+			i++;
+		}
+		return i;
+	}
+
+}
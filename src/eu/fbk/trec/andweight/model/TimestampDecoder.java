@@ -0,0 +1,158 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.model;
+
+import java.util.TimeZone;
+
+/**
+ * Decode the dates sent by the weight scale into epoch seconds, using only integer arithmetic.
+ * 
+ * The date fields are interpreted exactly as the previous implementation did with {@link java.util.Calendar#set}: local
+ * time in the default time zone, 0-based month, out of range fields carried over (lenient). The start of each day and
+ * its UTC offset are cached, so consecutive measurements of the same day cost a few multiplications.
+ * 
+ * This class is not thread safe: use one instance per thread (e.g. per connection).
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class TimestampDecoder {
+
+	// useful constants
+	private static final int SECONDS_PER_DAY = 86400;
+	private static final int CACHE_SIZE = 16;
+	private static final long NO_DAY = -1L;
+	private static final int TRANSITION = Integer.MIN_VALUE;
+
+	// time zone of the dates
+	private final TimeZone timeZone;
+
+	// direct-mapped cache: day key -> local epoch seconds of midnight, offset of the day
+	private final long[] keys = new long[CACHE_SIZE];
+	private final long[] midnights = new long[CACHE_SIZE];
+	private final int[] offsets = new int[CACHE_SIZE];
+
+	/**
+	 * Create a decoder for the default time zone.
+	 */
+	public TimestampDecoder() {
+		this(TimeZone.getDefault());
+	}
+
+	/**
+	 * Create a decoder for the given time zone.
+	 */
+	public TimestampDecoder(TimeZone timeZone) {
+		this.timeZone = timeZone;
+		for (int i = 0; i < CACHE_SIZE; i++) {
+			keys[i] = NO_DAY;
+		}
+	}
+
+	/**
+	 * Decode a date (year as 2 bytes little endian, then month, day, hour, minute and second).
+	 * 
+	 * @param bb
+	 *            Byte array.
+	 * @param offset
+	 *            Offset of the date.
+	 * @return Epoch seconds.
+	 */
+	public long decode(byte[] bb, int offset) {
+		int year = (bb[offset + 1] << 8) & 0xff00 | bb[offset] & 0x00ff;
+		int month = bb[offset + 2];
+		int day = bb[offset + 3];
+		int hour = bb[offset + 4];
+		int minute = bb[offset + 5];
+		int second = bb[offset + 6];
+
+		return toEpochSeconds(year, month, day, hour, minute, second);
+	}
+
+	/**
+	 * Convert a local date to epoch seconds.
+	 * 
+	 * @param month
+	 *            0-based month, as in {@link java.util.Calendar}.
+	 */
+	public long toEpochSeconds(int year, int month, int day, int hour, int minute, int second) {
+		// key of the day (the fields of a single byte fit in 8 bits each)
+		long key = (year & 0xffffffffL) << 16 | (month & 0xff) << 8 | day & 0xff;
+		int slot = (int) (key ^ key >>> 8) & (CACHE_SIZE - 1);
+
+		if (keys[slot] != key) {
+			long midnight = localMidnight(year, month, day);
+			keys[slot] = key;
+			midnights[slot] = midnight;
+			offsets[slot] = dayOffset(midnight);
+		}
+
+		long local = midnights[slot] + hour * 3600L + minute * 60L + second;
+		int offset = offsets[slot];
+
+		// the offset changes during this day (daylight saving)
+		if (offset == TRANSITION) {
+			offset = offsetAt(local);
+		}
+
+		return local - offset;
+	}
+
+	/**
+	 * Local epoch seconds of the midnight of the given day.
+	 */
+	private static long localMidnight(int year, int month, int day) {
+		// normalize the month, as a lenient Calendar does
+		long months = year * 12L + month;
+		long y = floorDiv(months, 12);
+		int m = (int) (months - y * 12) + 1;
+
+		return (daysFromCivil(y, m, 1) + day - 1) * SECONDS_PER_DAY;
+	}
+
+	/**
+	 * Days since 1970-01-01 of a date in the proleptic Gregorian calendar (month 1-12).
+	 */
+	private static long daysFromCivil(long y, int m, int d) {
+		y -= m <= 2 ? 1 : 0;
+		long era = floorDiv(y, 400);
+		long yoe = y - era * 400;
+		long doy = (153 * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+		long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+
+	private static long floorDiv(long a, long b) {
+		long q = a / b;
+		return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+	}
+
+	/**
+	 * UTC offset (in seconds) valid for the whole day starting at the given local midnight, or {@link #TRANSITION}.
+	 */
+	private int dayOffset(long midnight) {
+		int start = offsetAt(midnight);
+		int end = offsetAt(midnight + SECONDS_PER_DAY);
+		return start == end ? start : TRANSITION;
+	}
+
+	/**
+	 * UTC offset (in seconds) of the given local time. Like Calendar, a local time which does not exist or is repeated
+	 * (daylight saving switch) is resolved with the standard offset.
+	 */
+	private int offsetAt(long local) {
+		int raw = timeZone.getRawOffset();
+		int offset = timeZone.getOffset(local * 1000 - raw);
+		if (offset != raw && timeZone.getOffset(local * 1000 - offset) != offset) {
+			offset = raw;
+		}
+		return offset / 1000;
+	}
+
+}
@@ -0,0 +1,307 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Growable columnar store of measurements, with primitive columns instead of an {@link AndWeight} (and a Date) per
+ * measurement: weight in tenths of kg (int), measure time in epoch seconds (unsigned int, up to year 2106) and,
+ * optionally, patient number (byte, -1 if unknown). A measurement takes 8 or 9 bytes.
+ * 
+ * The AndWeight objects are created only on request ({@link #get(int)}, {@link #toList()}); use
+ * {@link #forEach(Visitor)} or the getters to read the columns without allocations.
+ * 
+ * This class is not thread safe.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class WeightColumns {
+
+	/**
+	 * Patient number of the measurements without it.
+	 */
+	public static final int NO_PATIENT = AndWeight.NO_PATIENT;
+
+	private static final int DEFAULT_CAPACITY = 64;
+
+	/**
+	 * Receives the measurements of {@link WeightColumns#forEach(Visitor)}.
+	 */
+	public interface Visitor {
+
+		public void visit(int index, int tenthsOfKg, long time, int patient);
+
+	}
+
+	private int size;
+	private int[] tenthsOfKg;
+	private int[] times;
+	private byte[] patients;
+
+	public WeightColumns() {
+		this(DEFAULT_CAPACITY, false);
+	}
+
+	/**
+	 * @param capacity
+	 *            Initial capacity.
+	 * @param withPatients
+	 *            True to store the patient numbers (the column is created anyway as soon as a patient is added).
+	 */
+	public WeightColumns(int capacity, boolean withPatients) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity cannot be negative!");
+		}
+		tenthsOfKg = new int[capacity];
+		times = new int[capacity];
+		if (withPatients) {
+			patients = newPatients(capacity);
+		}
+	}
+
+	/**
+	 * Number of measurements.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * True if the patient numbers are stored.
+	 */
+	public boolean hasPatients() {
+		return patients != null;
+	}
+
+	/**
+	 * Append a measurement.
+	 * 
+	 * @param tenthsOfKg
+	 *            Weight (kg / 10).
+	 * @param time
+	 *            Measure time (epoch seconds).
+	 * @param patient
+	 *            Patient number (0-99), or {@link #NO_PATIENT}.
+	 */
+	public void add(int tenthsOfKg, long time, int patient) {
+		if (patient != NO_PATIENT && patients == null) {
+			patients = newPatients(this.tenthsOfKg.length);
+		}
+		ensureCapacity(size + 1);
+
+		this.tenthsOfKg[size] = tenthsOfKg;
+		this.times[size] = (int) time;
+		if (patients != null) {
+			patients[size] = (byte) patient;
+		}
+		size++;
+	}
+
+	/**
+	 * Insert a measurement at the given index (the following ones are shifted: O(n), to insert many measurements
+	 * append and merge them instead).
+	 * 
+	 * @see #add(int, long, int)
+	 */
+	public void insert(int index, int tenthsOfKg, long time, int patient) {
+		if (index < 0 || index > size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		if (patient != NO_PATIENT && patients == null) {
+			patients = newPatients(this.tenthsOfKg.length);
+		}
+		ensureCapacity(size + 1);
+
+		System.arraycopy(this.tenthsOfKg, index, this.tenthsOfKg, index + 1, size - index);
+		System.arraycopy(times, index, times, index + 1, size - index);
+		this.tenthsOfKg[index] = tenthsOfKg;
+		this.times[index] = (int) time;
+		if (patients != null) {
+			System.arraycopy(patients, index, patients, index + 1, size - index);
+			patients[index] = (byte) patient;
+		}
+		size++;
+	}
+
+	/**
+	 * Append a measurement.
+	 */
+	public void add(AndWeight weight) {
+		add(Math.round(weight.getWeight() * 10), weight.getMeasureDate().getTime() / 1000, weight.getPatient());
+	}
+
+	/**
+	 * Append many measurements.
+	 */
+	public void addAll(Collection<AndWeight> weights) {
+		ensureCapacity(size + weights.size());
+		for (AndWeight w : weights) {
+			add(w);
+		}
+	}
+
+	/**
+	 * Append all the measurements of another store.
+	 */
+	public void addAll(WeightColumns other) {
+		addAll(other, 0, other.size);
+	}
+
+	/**
+	 * Append the measurements of another store from offset (inclusive) to offset + length (exclusive).
+	 */
+	public void addAll(WeightColumns other, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > other.size) {
+			throw new IndexOutOfBoundsException("Offset: " + offset + ", Length: " + length + ", Size: " + other.size);
+		}
+		if (other.patients != null && patients == null) {
+			patients = newPatients(tenthsOfKg.length);
+		}
+		ensureCapacity(size + length);
+
+		System.arraycopy(other.tenthsOfKg, offset, tenthsOfKg, size, length);
+		System.arraycopy(other.times, offset, times, size, length);
+		if (other.patients != null) {
+			System.arraycopy(other.patients, offset, patients, size, length);
+		} else if (patients != null) {
+			Arrays.fill(patients, size, size + length, (byte) NO_PATIENT);
+		}
+		size += length;
+	}
+
+	/**
+	 * Append many measurements without patient number.
+	 * 
+	 * @param tenthsOfKg
+	 *            Weights (kg / 10).
+	 * @param times
+	 *            Measure times (epoch seconds).
+	 */
+	public void addAll(int[] tenthsOfKg, long[] times, int offset, int length) {
+		ensureCapacity(size + length);
+		System.arraycopy(tenthsOfKg, offset, this.tenthsOfKg, size, length);
+		for (int i = 0; i < length; i++) {
+			this.times[size + i] = (int) times[offset + i];
+		}
+		if (patients != null) {
+			Arrays.fill(patients, size, size + length, (byte) NO_PATIENT);
+		}
+		size += length;
+	}
+
+	/**
+	 * Weight (kg / 10) of the i-th measurement.
+	 */
+	public int getTenthsOfKg(int i) {
+		check(i);
+		return tenthsOfKg[i];
+	}
+
+	/**
+	 * Weight (kg) of the i-th measurement.
+	 */
+	public float getWeight(int i) {
+		return WeightDecoder.toKg(getTenthsOfKg(i));
+	}
+
+	/**
+	 * Measure time (epoch seconds) of the i-th measurement.
+	 */
+	public long getTime(int i) {
+		check(i);
+		return times[i] & 0xffffffffL;
+	}
+
+	/**
+	 * Patient number of the i-th measurement, or {@link #NO_PATIENT}.
+	 */
+	public int getPatient(int i) {
+		check(i);
+		return patients == null ? NO_PATIENT : patients[i];
+	}
+
+	/**
+	 * The i-th measurement as an AndWeight.
+	 */
+	public AndWeight get(int i) {
+		return new AndWeight(getWeight(i), new Date(getTime(i) * 1000), getPatient(i));
+	}
+
+	/**
+	 * Visit all the measurements, in order.
+	 */
+	public void forEach(Visitor visitor) {
+		for (int i = 0; i < size; i++) {
+			visitor.visit(i, tenthsOfKg[i], times[i] & 0xffffffffL, patients == null ? NO_PATIENT : patients[i]);
+		}
+	}
+
+	/**
+	 * All the measurements as AndWeight objects.
+	 */
+	public List<AndWeight> toList() {
+		List<AndWeight> list = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			list.add(get(i));
+		}
+		return list;
+	}
+
+	/**
+	 * Remove all the measurements (the capacity is kept).
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Release the unused capacity.
+	 */
+	public void trimToSize() {
+		tenthsOfKg = Arrays.copyOf(tenthsOfKg, size);
+		times = Arrays.copyOf(times, size);
+		if (patients != null) {
+			patients = Arrays.copyOf(patients, size);
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= tenthsOfKg.length) {
+			return;
+		}
+
+		int length = Math.max(capacity, tenthsOfKg.length + (tenthsOfKg.length >> 1) + 1);
+		tenthsOfKg = Arrays.copyOf(tenthsOfKg, length);
+		times = Arrays.copyOf(times, length);
+		if (patients != null) {
+			int old = patients.length;
+			patients = Arrays.copyOf(patients, length);
+			Arrays.fill(patients, old, length, (byte) NO_PATIENT);
+		}
+	}
+
+	private void check(int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+		}
+	}
+
+	private static byte[] newPatients(int capacity) {
+		byte[] patients = new byte[capacity];
+		Arrays.fill(patients, (byte) NO_PATIENT);
+		return patients;
+	}
+
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.model;
+
+/**
+ * Fixed-point decoder for the ASCII weight sent by the weight scale (e.g. " 070.4" + "kg").
+ * 
+ * The weight is parsed directly from the bytes into an integer number of tenths of kg (hectograms), without building
+ * any String and without floating point arithmetic. Weights in lb are converted with a precomputed fixed-point factor.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public final class WeightDecoder {
+
+	/**
+	 * Returned when the bytes are not a valid weight.
+	 */
+	public static final int INVALID = Integer.MIN_VALUE;
+
+	// the value is parsed in thousandths of the unit
+	private static final int MILLI_DIGITS = 3;
+
+	// 0.453592 kg per lb, as 1e-6 fixed point
+	private static final long KG_PER_LB_MICRO = 453592L;
+
+	// milli-kg -> tenths of kg and micro-kg-per-lb * milli-lb -> tenths of kg
+	private static final long MILLI_PER_TENTH = 100L;
+	private static final long LB_DIVISOR = 100000000L;
+
+	private WeightDecoder() {
+	}
+
+	/**
+	 * Decode a weight.
+	 * 
+	 * @param bb
+	 *            Byte array.
+	 * @param valueOffset
+	 *            Offset of the ASCII value.
+	 * @param valueLength
+	 *            Length of the ASCII value.
+	 * @param unitOffset
+	 *            Offset of the 2 bytes unit ("kg" or "lb").
+	 * @return The weight in tenths of kg (hectograms), or {@link #INVALID}.
+	 */
+	public static int tenthsOfKg(byte[] bb, int valueOffset, int valueLength, int unitOffset) {
+		long milli = parseMilli(bb, valueOffset, valueLength);
+		if (milli == INVALID) {
+			return INVALID;
+		}
+
+		byte u1 = bb[unitOffset];
+		byte u2 = bb[unitOffset + 1];
+
+		// kg -> round to 1 digit
+		if (u1 == 'k' && u2 == 'g') {
+			return (int) divideAndRound(milli, MILLI_PER_TENTH);
+		}
+
+		// lb -> convert to kg and round to 1 digit
+		if (u1 == 'l' && u2 == 'b') {
+			return (int) divideAndRound(milli * KG_PER_LB_MICRO, LB_DIVISOR);
+		}
+
+		return INVALID;
+	}
+
+	/**
+	 * Convert tenths of kg to kg.
+	 */
+	public static float toKg(int tenthsOfKg) {
+		return tenthsOfKg / 10f;
+	}
+
+	/**
+	 * Parse an ASCII decimal number (optional blanks, optional sign, digits, optional dot and decimals) in thousandths.
+	 * Decimals beyond the third are rounded.
+	 * 
+	 * @return The value in thousandths, or {@link #INVALID}.
+	 */
+	static long parseMilli(byte[] bb, int offset, int length) {
+		int i = offset;
+		int end = offset + length;
+
+		// trim blanks (as Float.parseFloat does)
+		while (i < end && bb[i] <= ' ') {
+			i++;
+		}
+		while (end > i && bb[end - 1] <= ' ') {
+			end--;
+		}
+
+		// sign
+		boolean negative = false;
+		if (i < end && (bb[i] == '+' || bb[i] == '-')) {
+			negative = bb[i] == '-';
+			i++;
+		}
+
+		long value = 0;
+		int digits = 0;
+		int decimals = -1;
+		boolean roundUp = false;
+
+		for (; i < end; i++) {
+			int b = bb[i];
+
+			if (b == '.' && decimals < 0) {
+				decimals = 0;
+				continue;
+			}
+
+			int digit = b - '0';
+			if (digit < 0 || digit > 9) {
+				return INVALID;
+			}
+			digits++;
+
+			if (decimals < 0) {
+				value = value * 10 + digit;
+			} else if (decimals < MILLI_DIGITS) {
+				value = value * 10 + digit;
+				decimals++;
+			} else if (decimals == MILLI_DIGITS) {
+				roundUp = digit >= 5;
+				decimals++;
+			}
+		}
+
+		if (digits == 0) {
+			return INVALID;
+		}
+
+		// scale to thousandths
+		for (int d = Math.max(decimals, 0); d < MILLI_DIGITS; d++) {
+			value *= 10;
+		}
+		if (roundUp) {
+			value++;
+		}
+
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Integer division rounding half away from zero.
+	 */
+	private static long divideAndRound(long value, long divisor) {
+		if (value < 0) {
+			return -((-value + divisor / 2) / divisor);
+		}
+		return (value + divisor / 2) / divisor;
+	}
+
+}
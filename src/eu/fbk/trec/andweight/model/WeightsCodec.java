@@ -0,0 +1,203 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.model;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Compact binary form of a list of weights, to send it in an Intent as a byte[] (instead of a Serializable
+ * {@link WeightsWrapper}).
+ * 
+ * Layout (big endian):
+ * 
+ * <pre>
+ * 0  magic 'A' 'W' (2)
+ * 2  version (1)
+ * 3  reserved (1)
+ * 4  count (4)
+ * 8  count records: weight (4, float kg), measure time (8, epoch milliseconds), patient number (2, version 2 only)
+ * </pre>
+ * 
+ * Version 2 adds the patient number ({@link AndWeight#NO_PATIENT} if unknown) to the records; version 1 is still
+ * decoded, without patient numbers. The single weights can be read directly from the byte[] ({@link #size(byte[])},
+ * {@link #getWeight(byte[], int)}, {@link #getTime(byte[], int)}, {@link #getPatient(byte[], int)}), without creating
+ * the objects.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public final class WeightsCodec {
+
+	/**
+	 * Current version of the format.
+	 */
+	public static final int VERSION = 2;
+
+	// layout
+	private static final byte MAGIC_0 = 'A';
+	private static final byte MAGIC_1 = 'W';
+	private static final int HEADER_LENGHT = 8;
+	private static final int RECORD_LENGHT_V1 = 12;
+	private static final int RECORD_LENGHT = 14;
+
+	private WeightsCodec() {
+	}
+
+	/**
+	 * Encode a list of weights.
+	 */
+	public static byte[] encode(List<AndWeight> weights) {
+		int count = weights.size();
+		byte[] bb = new byte[HEADER_LENGHT + count * RECORD_LENGHT];
+
+		bb[0] = MAGIC_0;
+		bb[1] = MAGIC_1;
+		bb[2] = VERSION;
+		putInt(bb, 4, count);
+
+		int offset = HEADER_LENGHT;
+		for (int i = 0; i < count; i++) {
+			AndWeight w = weights.get(i);
+			putInt(bb, offset, Float.floatToIntBits(w.getWeight()));
+			putLong(bb, offset + 4, w.getMeasureDate().getTime());
+			putShort(bb, offset + 12, w.getPatient());
+			offset += RECORD_LENGHT;
+		}
+		return bb;
+	}
+
+	/**
+	 * Encode the measurements of a columnar store.
+	 */
+	public static byte[] encode(WeightColumns weights) {
+		int count = weights.size();
+		byte[] bb = new byte[HEADER_LENGHT + count * RECORD_LENGHT];
+
+		bb[0] = MAGIC_0;
+		bb[1] = MAGIC_1;
+		bb[2] = VERSION;
+		putInt(bb, 4, count);
+
+		int offset = HEADER_LENGHT;
+		for (int i = 0; i < count; i++) {
+			putInt(bb, offset, Float.floatToIntBits(weights.getWeight(i)));
+			putLong(bb, offset + 4, weights.getTime(i) * 1000);
+			putShort(bb, offset + 12, weights.getPatient(i));
+			offset += RECORD_LENGHT;
+		}
+		return bb;
+	}
+
+	/**
+	 * Decode a list of weights, appending them to a columnar store (no objects per weight).
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If the bytes are not a list of weights of a known version.
+	 */
+	public static void decode(byte[] bb, WeightColumns weights) {
+		int count = size(bb);
+		for (int i = 0; i < count; i++) {
+			weights.add(Math.round(getWeight(bb, i) * 10), getTime(bb, i) / 1000, getPatient(bb, i));
+		}
+	}
+
+	/**
+	 * Decode a list of weights.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If the bytes are not a list of weights of a known version.
+	 */
+	public static List<AndWeight> decode(byte[] bb) {
+		int count = size(bb);
+		List<AndWeight> weights = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			weights.add(new AndWeight(getWeight(bb, i), new Date(getTime(bb, i)), getPatient(bb, i)));
+		}
+		return weights;
+	}
+
+	/**
+	 * Number of weights.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If the bytes are not a list of weights of a known version.
+	 */
+	public static int size(byte[] bb) {
+		if (bb == null || bb.length < HEADER_LENGHT || bb[0] != MAGIC_0 || bb[1] != MAGIC_1) {
+			throw new IllegalArgumentException("Not a list of weights");
+		}
+		if (bb[2] != 1 && bb[2] != VERSION) {
+			throw new IllegalArgumentException("Unknown version: " + bb[2]);
+		}
+
+		int count = getInt(bb, 4);
+		if (count < 0 || bb.length < HEADER_LENGHT + (long) count * recordLength(bb)) {
+			throw new IllegalArgumentException("Truncated list of weights");
+		}
+		return count;
+	}
+
+	/**
+	 * Weight (kg) of the i-th element.
+	 */
+	public static float getWeight(byte[] bb, int i) {
+		return Float.intBitsToFloat(getInt(bb, HEADER_LENGHT + i * recordLength(bb)));
+	}
+
+	/**
+	 * Measure time (epoch milliseconds) of the i-th element.
+	 */
+	public static long getTime(byte[] bb, int i) {
+		return getLong(bb, HEADER_LENGHT + i * recordLength(bb) + 4);
+	}
+
+	/**
+	 * Patient number of the i-th element, or {@link AndWeight#NO_PATIENT} (always for version 1).
+	 */
+	public static int getPatient(byte[] bb, int i) {
+		if (bb[2] == 1) {
+			return AndWeight.NO_PATIENT;
+		}
+		return (short) ((bb[HEADER_LENGHT + i * RECORD_LENGHT + 12] & 0xff) << 8
+				| bb[HEADER_LENGHT + i * RECORD_LENGHT + 13] & 0xff);
+	}
+
+	private static int recordLength(byte[] bb) {
+		return bb[2] == 1 ? RECORD_LENGHT_V1 : RECORD_LENGHT;
+	}
+
+	private static void putInt(byte[] bb, int offset, int v) {
+		bb[offset] = (byte) (v >>> 24);
+		bb[offset + 1] = (byte) (v >>> 16);
+		bb[offset + 2] = (byte) (v >>> 8);
+		bb[offset + 3] = (byte) v;
+	}
+
+	private static void putShort(byte[] bb, int offset, int v) {
+		bb[offset] = (byte) (v >>> 8);
+		bb[offset + 1] = (byte) v;
+	}
+
+	private static void putLong(byte[] bb, int offset, long v) {
+		putInt(bb, offset, (int) (v >>> 32));
+		putInt(bb, offset + 4, (int) v);
+	}
+
+	private static int getInt(byte[] bb, int offset) {
+		return (bb[offset] & 0xff) << 24 | (bb[offset + 1] & 0xff) << 16 | (bb[offset + 2] & 0xff) << 8
+				| bb[offset + 3] & 0xff;
+	}
+
+	private static long getLong(byte[] bb, int offset) {
+		return (long) getInt(bb, offset) << 32 | getInt(bb, offset + 4) & 0xffffffffL;
+	}
+
+}
@@ -15,8 +15,10 @@ import java.util.List;
 /**
  * This class only wraps a list of AndWeight objects.
  * 
+ * @deprecated The service sends the weights encoded with {@link WeightsCodec}.
  * @author Davide Pedranz (davide.pedranz@gmail.com)
  */
+@Deprecated
 public class WeightsWrapper implements Serializable {
 	private static final long serialVersionUID = 7209809263040325607L;
 
@@ -0,0 +1,238 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.fbk.trec.andweight.metrics.SessionMetrics;
+import eu.fbk.trec.andweight.utils.FrameLog;
+import eu.fbk.trec.andweight.utils.Logger;
+
+/**
+ * Writes the responses of a session on another thread, so the reading thread can read the next frame while the ack of
+ * the current one is being written.
+ * 
+ * The write loop of a session runs as a task of an Executor, by default a pool shared by all the sessions: virtual
+ * threads if available, otherwise platform threads which are reused by the next sessions (and end after a minute
+ * idle), so a session does not start a thread of its own.
+ * 
+ * The responses are written in the order they are queued (so the order of the acks is the order of the measures). The
+ * responses queued while a write is in progress are coalesced into a single write and flush, through a preallocated
+ * buffer. The read to ack latency of every ack is recorded in the {@link SessionMetrics} after its flush. A write
+ * error is reported by the next {@link #write(byte[], long)}.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class AckWriter implements ScaleSession.Writer, Closeable {
+	private static final String TAG = AckWriter.class.getSimpleName();
+
+	// size of the coalescing buffer
+	private static final int BUFFER_SIZE = 256;
+
+	// maximum time close() waits for the queued responses (ms)
+	private static final long CLOSE_TIMEOUT = 1000;
+
+	// idle time before a pooled platform thread ends (s)
+	private static final long KEEP_ALIVE = 60;
+
+	// end of the responses
+	private static final Response END = new Response(new byte[0], -1);
+
+	// write loops of all the sessions
+	private static Executor shared;
+
+	private final OutputStream output;
+	private final SessionMetrics metrics;
+	private final BlockingQueue<Response> queue = new LinkedBlockingQueue<>();
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private final CountDownLatch done = new CountDownLatch(1);
+	private volatile Thread thread;
+	private volatile IOException failure;
+
+	/**
+	 * Create a writer and start its write loop on the shared executor.
+	 * 
+	 * @param metrics
+	 *            Metrics of the session (receives the read to ack latencies).
+	 */
+	public AckWriter(OutputStream output, SessionMetrics metrics) {
+		this(output, metrics, shared());
+	}
+
+	/**
+	 * Create a writer and start its write loop on the given executor (which must run it concurrently with the session).
+	 */
+	public AckWriter(OutputStream output, SessionMetrics metrics, Executor executor) {
+		if (output == null || metrics == null || executor == null) {
+			throw new RuntimeException("Output, Metrics and Executor cannot be null!");
+		}
+		this.output = output;
+		this.metrics = metrics;
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				thread = Thread.currentThread();
+				try {
+					writeLoop();
+				} finally {
+					thread = null;
+					done.countDown();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Queue a response (the packet must not be modified afterwards).
+	 * 
+	 * @throws IOException
+	 *             If a previous write failed.
+	 */
+	@Override
+	public void write(byte[] packet, long readTime) throws IOException {
+		IOException e = failure;
+		if (e != null) {
+			throw e;
+		}
+		queue.add(new Response(packet, readTime));
+	}
+
+	/**
+	 * Write the queued responses and end the write loop (waits at most 1 second).
+	 */
+	@Override
+	public void close() {
+		queue.add(END);
+		try {
+			if (done.await(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Logger.e(TAG, "responses not written in time...");
+		Thread t = thread;
+		if (t != null) {
+			t.interrupt();
+		}
+	}
+
+	/**
+	 * Executor of the write loops shared by the sessions.
+	 */
+	private static synchronized Executor shared() {
+		if (shared == null) {
+			shared = SessionExecutors.virtualThreadPerSession();
+		}
+		if (shared == null) {
+			shared = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, TAG + "-" + count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return shared;
+	}
+
+	private void writeLoop() {
+		List<Response> batch = new ArrayList<>();
+		try {
+			while (true) {
+				batch.add(queue.take());
+				queue.drainTo(batch);
+
+				boolean end = false;
+				int length = 0;
+				for (Response response : batch) {
+					if (response == END) {
+						end = true;
+						break;
+					}
+					byte[] packet = response.packet;
+					if (length + packet.length > BUFFER_SIZE) {
+						flush(length);
+						length = 0;
+					}
+					if (packet.length > BUFFER_SIZE) {
+						output.write(packet);
+						FrameLog.out(packet, 0, packet.length);
+					} else {
+						System.arraycopy(packet, 0, buffer, length, packet.length);
+						length += packet.length;
+					}
+				}
+				flush(length);
+
+				// the acks are on the transport
+				long now = System.nanoTime();
+				for (Response response : batch) {
+					if (response.readTime >= 0) {
+						metrics.ack(now - response.readTime);
+					}
+				}
+				batch.clear();
+
+				if (end) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			Logger.e(TAG, "cannot write the responses...");
+			failure = e;
+		} catch (InterruptedException e) {
+			Logger.v(TAG, "interrupted...");
+		}
+	}
+
+	/**
+	 * Write the first bytes of the buffer and flush.
+	 */
+	private void flush(int length) throws IOException {
+		if (length > 0) {
+			output.write(buffer, 0, length);
+			FrameLog.out(buffer, 0, length);
+		}
+		output.flush();
+	}
+
+	/**
+	 * A queued response, with the read time of the frame it acknowledges (-1 if not an ack).
+	 */
+	private static final class Response {
+		final byte[] packet;
+		final long readTime;
+
+		Response(byte[] packet, long readTime) {
+			this.packet = packet;
+			this.readTime = readTime;
+		}
+	}
+
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.service;
+
+import java.util.List;
+
+import eu.fbk.trec.andweight.model.AndWeight;
+import eu.fbk.trec.andweight.storage.MeasurementJournal;
+
+/**
+ * A listener which delivers the lists of weights asynchronously (e.g. on another thread).
+ * 
+ * The weights of a list are not marked as delivered in the journal when the call returns: the listener receives their
+ * sequence numbers and calls {@link MeasurementJournal#delivered(long)} itself once they have really been delivered. A
+ * list which is never delivered stays pending in the journal, and is delivered again at the next start.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public interface AsyncWeightListener extends WeightListener {
+
+	/**
+	 * @param weights
+	 *            The weights (not modified after this call).
+	 * @param sequences
+	 *            Sequence number in the journal of every weight, -1 if not in the journal.
+	 */
+	public void onWeightList(List<AndWeight> weights, long[] sequences);
+
+}
@@ -9,8 +9,15 @@
  */
 package eu.fbk.trec.andweight.service;
 
-import java.util.LinkedList;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
@@ -20,10 +27,15 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.IBinder;
 import android.util.Log;
+import eu.fbk.trec.andweight.R;
+import eu.fbk.trec.andweight.metrics.MetricsRegistry;
 import eu.fbk.trec.andweight.model.AndWeight;
-import eu.fbk.trec.andweight.model.WeightsWrapper;
+import eu.fbk.trec.andweight.model.WeightsCodec;
+import eu.fbk.trec.andweight.storage.MeasurementIndex;
+import eu.fbk.trec.andweight.storage.MeasurementJournal;
+import eu.fbk.trec.andweight.transport.BluetoothServer;
 
-public class BluetoothService extends Service implements WeightListener {
+public class BluetoothService extends Service implements AsyncWeightListener {
 	public final static String TAG = BluetoothService.class.getSimpleName();
 
 	// intent
@@ -56,14 +68,59 @@ public class BluetoothService extends Service implements WeightListener {
 	public static final int TURNING_BT_ON = 8;
 	public static final int TURNING_BT_OFF = 9;
 
+	// directory of the measurement journal (in the private files of the app)
+	private static final String JOURNAL_DIRECTORY = "journal";
+
+	// directory of the responses to the patient info requests (in the private files of the app)
+	private static final String PATIENT_INFO_DIRECTORY = "patient_info";
+
+	// directory of the measurements spilled by the partitions (in the cache of the app)
+	private static final String SPILL_DIRECTORY = "spill";
+	private static final String DELIVERY_SPILL = "delivery.spill";
+
+	// maximum wait for the sessions to end on destroy (ms)
+	private static final long SESSIONS_END_TIMEOUT = 2000;
+
+	// events delivered by the dispatcher thread
+	private static final int EVENT_STATUS = 1;
+	private static final int EVENT_DISCONNECT = 3;
+
 	// BlueTooth adapter
 	private BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 
 	// status at start
 	private boolean wasBluetoothOn;
 
+	// maximum number of scales served at the same time (see res/values/config.xml)
+	private int maxConnections;
+
+	// keep listening (and BlueTooth on) after the sessions (see res/values/config.xml)
+	private boolean warmListener;
+
+	// listener for incoming connections
+	private volatile ListenThread listenThread;
+
+	// executor of the sessions
+	private Executor sessionExecutor;
+
+	// measurements recorded before the ack (null if the journal cannot be opened)
+	private MeasurementJournal journal;
+
+	// measurements by patient and time
+	private final MeasurementIndex index = new MeasurementIndex();
+
+	// downstream processing of the measurements, partitioned by patient
+	private PatientPartitions partitions;
+
+	// delivery of the status updates to the activities
+	private EventDispatcher dispatcher;
+
+	// delivery of the weights to the activities: bounded hand-off from the sessions to the delivery thread
+	private HandoffQueue delivery;
+	private Thread deliveryThread;
+
 	// Thread list
-	private final List<Thread> threads = new LinkedList<>();
+	private final Queue<Thread> threads = new ConcurrentLinkedQueue<>();
 
 	/**
 	 * Receive callback from the BluetoothAdapter.
@@ -120,10 +177,85 @@ public class BluetoothService extends Service implements WeightListener {
 		super.onCreate();
 		Log.v(TAG, "OnCreate");
 
+		// the callbacks of the sessions only publish the events: the broadcasts are sent by the dispatcher thread
+		dispatcher = new EventDispatcher(new EventDispatcher.Handler() {
+			@Override
+			public void onEvent(int type, Object payload) {
+				deliver(type, payload);
+			}
+		});
+
 		// register receiver
 		registerReceiver(bluetoothReceiver, new IntentFilter(BluetoothAdapter.ACTION_CONNECTION_STATE_CHANGED));
 		registerReceiver(bluetoothReceiver, new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
 
+		// read the configuration
+		maxConnections = getResources().getInteger(R.integer.max_connections);
+		warmListener = getResources().getBoolean(R.bool.warm_listener);
+
+		// open the journal
+		try {
+			journal = new MeasurementJournal(new File(getFilesDir(), JOURNAL_DIRECTORY));
+		} catch (IOException e) {
+			Log.e(TAG, "cannot open the journal...", e);
+		}
+
+		// answers to the patient info requests (see PatientTable): from the configuration, then from the files
+		// written by the application, which take precedence; none by default, so the requests are not answered
+		PatientTable patientTable = PatientTable.global();
+		patientTable.clear();
+		patientTable.load(getResources().getStringArray(R.array.patient_info_responses));
+		patientTable.load(new File(getFilesDir(), PATIENT_INFO_DIRECTORY));
+		Log.i(TAG, "patient info responses: " + patientTable.size());
+
+		// index the recorded measurements, then keep the index up to date
+		if (journal != null) {
+			Log.i(TAG, index.load(journal) + " measurements in the journal");
+		}
+
+		// the measures recorded by the previous runs are duplicates too, if a scale sends them again
+		final DuplicateFilter duplicates = DuplicateFilter.global();
+		duplicates.setSize(getResources().getInteger(R.integer.duplicate_filter_capacity), getResources()
+				.getInteger(R.integer.duplicate_filter_window));
+		if (journal != null) {
+			journal.recover(new MeasurementJournal.Visitor() {
+				@Override
+				public void visit(long sequence, float weight, long time, int patient, boolean delivered) {
+					duplicates.seed(patient, time / 1000, Math.round(weight * 10));
+				}
+			}, false);
+		}
+		// the measures sent again by the scales are checked against the index; the index does not store the device,
+		// so a measure of another scale with the same patient, second and weight is taken as a duplicate: accepted,
+		// since only the keys already in the Bloom filter are verified and such a collision is unlikely
+		duplicates.setVerifier(new DuplicateFilter.Verifier() {
+			@Override
+			public boolean contains(String device, int patient, long time, int tenthsOfKg) {
+				return index.contains(patient, time, tenthsOfKg);
+			}
+		});
+		// bounded queues: a slow consumer must not stall the sessions (see res/values/config.xml)
+		int capacity = getResources().getInteger(R.integer.delivery_queue_capacity);
+		HandoffQueue.Policy policy = HandoffQueue.Policy.valueOf(getResources().getString(
+				R.string.delivery_queue_policy));
+		partitions = new PatientPartitions(Runtime.getRuntime().availableProcessors(), capacity, policy, new File(
+				getCacheDir(), SPILL_DIRECTORY), new PatientPartitions.Consumer() {
+			@Override
+			public void consume(int partition, AndWeight weight) {
+				index.add(weight.getPatient(), Math.round(weight.getWeight() * 10),
+						weight.getMeasureDate().getTime() / 1000);
+			}
+		});
+		delivery = new HandoffQueue(capacity, policy, new File(new File(getCacheDir(), SPILL_DIRECTORY),
+				DELIVERY_SPILL), HandoffQueue.DEFAULT_MAX_BLOCK);
+		deliveryThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				deliverWeights();
+			}
+		}, "WeightDelivery");
+		deliveryThread.start();
+
 		// exit if BlueTooth adapter not present
 		if (bluetoothAdapter == null) {
 			updateStatus(NO_BT_ADAPTER);
@@ -168,6 +300,24 @@ public class BluetoothService extends Service implements WeightListener {
 		// unregister receiver
 		unregisterReceiver(bluetoothReceiver);
 
+		// stop the sessions before closing what they use
+		stopSessions();
+
+		// stop the processing of the measurements
+		if (partitions != null) {
+			partitions.close();
+			Log.i(TAG, partitions.toString());
+		}
+
+		// broadcast the queued weights (marking them in the journal) and stop the delivery thread
+		delivery.close();
+		try {
+			deliveryThread.join(SESSIONS_END_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Log.i(TAG, delivery.toString());
+
 		// turn off BlueTooth if needed
 		if (!wasBluetoothOn) {
 			updateStatus(TURNING_BT_OFF);
@@ -175,6 +325,21 @@ public class BluetoothService extends Service implements WeightListener {
 		}
 
 		updateStatus(SERVICE_ENDED);
+
+		// deliver the last events and stop the dispatcher
+		Log.i(TAG, MetricsRegistry.global().snapshot().toString());
+		Log.i(TAG, dispatcher.toString());
+		dispatcher.close();
+		try {
+			dispatcher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// close the journal
+		if (journal != null) {
+			journal.close();
+		}
 	}
 
 	/**
@@ -183,19 +348,83 @@ public class BluetoothService extends Service implements WeightListener {
 	private void startListening() {
 		Log.v(TAG, "startListening");
 
+		// measurements acknowledged in a previous run but never delivered
+		deliverPending();
+
 		// launch a thread which listen for incoming connections
-		ListenThread listenThread = new ListenThread(this);
+		// (the sessions run on virtual threads if available, otherwise each one on its own thread)
+		if (sessionExecutor == null) {
+			sessionExecutor = SessionExecutors.lightweight(this);
+		}
+		listenThread = new ListenThread(new BluetoothServer(), this, maxConnections, sessionExecutor, journal,
+				warmListener);
 		listenThread.start();
 
 		updateStatus(LISTEN_START);
 	}
 
+	/**
+	 * Send the measurements of the journal not yet delivered (e.g. the process died during a session).
+	 */
+	private void deliverPending() {
+		if (journal == null) {
+			return;
+		}
+
+		List<Long> sequences = new ArrayList<>();
+		List<AndWeight> weights = journal.pending(sequences);
+		if (weights.isEmpty()) {
+			return;
+		}
+
+		// same size of the batches of a session, marked as delivered after their broadcast
+		Log.i(TAG, "delivering " + weights.size() + " measurements from the journal");
+		for (int i = 0; i < weights.size(); i += WeightBatcher.DEFAULT_MAX_COUNT) {
+			int end = Math.min(i + WeightBatcher.DEFAULT_MAX_COUNT, weights.size());
+			long[] batch = new long[end - i];
+			for (int j = i; j < end; j++) {
+				batch[j - i] = sequences.get(j);
+			}
+			onWeightList(weights.subList(i, end), batch);
+		}
+	}
+
+	/**
+	 * Stop accepting connections, close the running sessions and wait for them to end (they append to the journal and
+	 * hand off the measurements).
+	 */
+	private void stopSessions() {
+		if (listenThread == null) {
+			return;
+		}
+
+		listenThread.cancel();
+		listenThread.closeSessions();
+		try {
+			if (!listenThread.awaitSessions(SESSIONS_END_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				Log.w(TAG, "sessions still running after " + SESSIONS_END_TIMEOUT + " ms");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
 	/**
 	 * Method to call to terminate correctly this service.
 	 */
 	private void stop() {
 		Log.i(TAG, "stop...");
 
+		// stop accepting new connections
+		if (listenThread != null) {
+			listenThread.cancel();
+		}
+
+		// kill every running session
+		if (sessionExecutor instanceof ExecutorService) {
+			((ExecutorService) sessionExecutor).shutdownNow();
+		}
+
 		// kill every running thread
 		for (Thread t : threads) {
 			Log.v(TAG, "killing thread " + t);
@@ -209,87 +438,150 @@ public class BluetoothService extends Service implements WeightListener {
 	}
 
 	/**
-	 * Send a status update to the connected activities.
+	 * Send a status update to the connected activities (asynchronously, in order with the other events).
 	 * 
 	 * @param status
 	 *            Status code.
 	 */
 	private void updateStatus(int status) {
+		dispatcher.publishControl(EVENT_STATUS, status);
+	}
+
+	/**
+	 * Send a status update about a measurement to the connected activities: it is dropped if the activities are too
+	 * slow (see EventDispatcher), so the sessions are not delayed.
+	 * 
+	 * @param status
+	 *            Status code.
+	 */
+	private void updateMeasureStatus(int status) {
+		dispatcher.publish(EVENT_STATUS, status);
+	}
+
+	/**
+	 * Deliver an event (on the dispatcher thread).
+	 */
+	private void deliver(int type, Object payload) {
+		switch (type) {
+		case EVENT_STATUS:
+			broadcastStatus((Integer) payload);
+			break;
+
+		case EVENT_DISCONNECT:
+			broadcastStatus(DEVICE_DISCONNECT);
+
+			// a persistent (or warm) listener keeps serving the scales
+			if (listenThread == null || !listenThread.isPersistent()) {
+				stop();
+			}
+			break;
+		}
+	}
+
+	private void broadcastStatus(int status) {
 		Intent intent = new Intent(TAG);
 		intent.putExtra(TYPE, TYPE_CONTROL);
 		intent.putExtra(STATUS, status);
 		sendBroadcast(intent);
 	}
 
+	/**
+	 * Broadcast the queued weights in batches, then mark them as delivered in the journal (on the delivery thread).
+	 */
+	private void deliverWeights() {
+		List<AndWeight> batch = new ArrayList<>(WeightBatcher.DEFAULT_MAX_COUNT);
+		long[] sequences = new long[WeightBatcher.DEFAULT_MAX_COUNT];
+		try {
+			int n;
+			while ((n = delivery.take(batch, sequences, WeightBatcher.DEFAULT_MAX_COUNT)) > 0) {
+				broadcastWeights(batch);
+
+				// only now the weights have reached the activities
+				if (journal != null) {
+					for (int i = 0; i < n; i++) {
+						journal.delivered(sequences[i]);
+					}
+				}
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			Log.v(TAG, "delivery interrupted...");
+		}
+	}
+
+	private void broadcastWeights(List<AndWeight> weights) {
+		Log.i(TAG, "onWeightList");
+
+		Intent intent = new Intent(TAG);
+		intent.putExtra(TYPE, TYPE_DATA_LIST);
+		intent.putExtra(WEIGHTS_LIST, WeightsCodec.encode(weights));
+		sendBroadcast(intent);
+
+		Log.i(TAG, "AFTER onWeightList");
+	}
+
 	@Override
 	public void onNewThread(Thread thread) {
-		synchronized (this) {
-			threads.add(thread);
-			Log.v(TAG, thread.toString());
-		}
+		threads.add(thread);
+		Log.v(TAG, thread.toString());
 	}
 
 	@Override
 	public void onConnect() {
-		synchronized (this) {
-			updateStatus(DEVICE_CONNECTED);
-		}
+		updateStatus(DEVICE_CONNECTED);
 	}
 
 	@Override
 	public void onDisonnect() {
-		synchronized (this) {
-			updateStatus(DEVICE_DISCONNECT);
-			stop();
-		}
+		// the session has ended (this is called by its ConnectionThread)
+		threads.remove(Thread.currentThread());
+
+		// never dropped: in single session mode it stops the service
+		dispatcher.publishControl(EVENT_DISCONNECT, null);
 	}
 
 	@Override
 	public void onError() {
-		synchronized (this) {
-			updateStatus(COMUNICATION_ERROR);
-		}
+		updateStatus(COMUNICATION_ERROR);
 	}
 
 	@Override
 	public void onMeasuring() {
-		synchronized (this) {
-			updateStatus(MEASURING);
-		}
+		updateMeasureStatus(MEASURING);
 	}
 
 	@Override
 	public void onWeight(AndWeight weight) {
-		// do nothing...
-		// see onWeightList()
+		// downstream processing (no global lock: each patient has its own partition)
+		partitions.submit(weight);
+
+		// the application receives the weights with onWeightList() (micro-batches of a session)
 
-		// synchronized (this) {
 		// Intent intent = new Intent(TAG);
 		// intent.putExtra(TYPE, TYPE_DATA);
 		// intent.putExtra(WEIGHT, weight);
 		// sendBroadcast(intent);
-		// }
 	}
 
 	@Override
 	public void onWeightList(List<AndWeight> weights) {
-		synchronized (this) {
-			Log.i(TAG, "onWeightList");
-
-			Intent intent = new Intent(TAG);
-			intent.putExtra(TYPE, TYPE_DATA_LIST);
-			intent.putExtra(WEIGHTS_LIST, new WeightsWrapper(weights));
-			sendBroadcast(intent);
+		onWeightList(weights, null);
+	}
 
-			Log.i(TAG, "AFTER onWeightList");
+	@Override
+	public void onWeightList(List<AndWeight> weights, long[] sequences) {
+		// bounded hand-off (see res/values/config.xml); the weights are marked as delivered after the broadcast
+		for (int i = 0; i < weights.size(); i++) {
+			if (!delivery.offer(weights.get(i), sequences == null ? -1 : sequences[i])) {
+				Log.w(TAG, (weights.size() - i) + " weights not delivered (service ending), kept in the journal");
+				return;
+			}
 		}
 	}
 
 	@Override
 	public void onInvalidMeasure() {
-		synchronized (this) {
-			updateStatus(INVALID_MEASURE);
-		}
+		updateMeasureStatus(INVALID_MEASURE);
 	}
 
 }
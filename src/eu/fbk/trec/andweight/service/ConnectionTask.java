@@ -0,0 +1,123 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import eu.fbk.trec.andweight.model.PacketFramer;
+import eu.fbk.trec.andweight.storage.MeasurementJournal;
+import eu.fbk.trec.andweight.transport.ScaleConnection;
+import eu.fbk.trec.andweight.utils.FrameLog;
+import eu.fbk.trec.andweight.utils.Logger;
+
+/**
+ * This task is responsible for handling the communication with the weight scale: it runs the read/decode/ack loop of
+ * a session until the connection is closed.
+ * 
+ * The task can run on a dedicated thread (see {@link ConnectionThread}) or on any Executor (see
+ * {@link SessionExecutors}), e.g. on virtual threads when available.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class ConnectionTask implements Runnable {
+	private static final String TAG = ConnectionTask.class.getSimpleName();
+
+	private final WeightListener listener;
+	private final MeasurementJournal journal;
+	private final ScaleConnection socket;
+	private final InputStream input;
+	private final OutputStream output;
+
+	// creation time, right after the accept of the connection
+	private final long accepted = System.nanoTime();
+
+	public ConnectionTask(ScaleConnection socket, WeightListener listener) throws IOException {
+		this(socket, listener, null);
+	}
+
+	/**
+	 * @param journal
+	 *            Journal of the measurements, or null.
+	 */
+	public ConnectionTask(ScaleConnection socket, WeightListener listener, MeasurementJournal journal)
+			throws IOException {
+		this.socket = socket;
+		this.listener = listener;
+		this.journal = journal;
+
+		if (socket == null || listener == null) {
+			throw new RuntimeException("Socket and Listener cannot be null!");
+		}
+
+		input = socket.getInputStream();
+		output = socket.getOutputStream();
+	}
+
+	@Override
+	public void run() {
+		Logger.i(TAG, "START ConnectionTask");
+		ScaleSession session = new ScaleSession(listener, journal);
+		session.setName(socket.getName());
+		session.setDevice(socket.getAddress());
+		PacketFramer framer = session.framer();
+
+		// responses are written by another thread (shared with the other sessions), while the next frame is read
+		AckWriter writer = new AckWriter(output, session.metrics());
+
+		// Keep listening to the InputStream while connected
+		while (socket.isConnected()) {
+			try {
+				// Read from the InputStream
+				int bytes = framer.read(input);
+				if (bytes < 0) {
+					Logger.e(TAG, "end of stream...");
+					break;
+				}
+
+				if (bytes > 0) {
+					session.metrics().firstByte(System.nanoTime() - accepted);
+				}
+
+				// log message
+				FrameLog.in(framer.buffer(), framer.readOffset(), bytes);
+
+				// handle every complete packet
+				session.process(writer, bytes);
+
+			} catch (IOException e) {
+				Logger.e(TAG, "disconnected...");
+				break;
+			}
+
+		}
+
+		// write the last responses
+		writer.close();
+
+		// send weight list to the service
+		session.close();
+
+		// close socket
+		try {
+			Logger.v(TAG, "closing socket...");
+			socket.close();
+		} catch (IOException e) {
+			Logger.e(TAG, "close() of connect socket failed", e);
+		}
+
+		// send status disconnected
+		listener.onDisonnect();
+
+		Logger.i(TAG, "END ConnectionTask");
+	}
+
+}
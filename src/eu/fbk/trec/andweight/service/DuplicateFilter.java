@@ -0,0 +1,363 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.service;
+
+import java.util.Arrays;
+
+/**
+ * Detects the measurements re-sent by a weight scale (e.g. after a lost ack), keyed on device, patient number,
+ * measure time and weight.
+ * 
+ * Two structures, both of fixed size:
+ * <ul>
+ * <li>an exact set of the most recent keys (a FIFO window), which catches the usual case: the scale re-sends what it
+ * sent in its last sessions;</li>
+ * <li>a Bloom filter of all the keys seen, in two generations (when the current one is full it replaces the old one),
+ * so the false positive rate stays bounded over millions of measurements. Its keys do not include the device, so it
+ * can be filled with the stored measurements on start ({@link #seed(int, long, int)}), which do not record it.</li>
+ * </ul>
+ * A key not in the Bloom filter is new; a key in the window is a duplicate. A key only in the Bloom filter may be a
+ * false positive: it is checked with the {@link Verifier}, if any, otherwise it is considered new (a measurement is
+ * never dropped because of a false positive). Every check is O(1).
+ * 
+ * The structures are allocated on the first use (up to 5 bytes per key of a generation and 40 bytes per key of
+ * the window), with the sizes of {@link #setSize(int, int)}.
+ * 
+ * This class is thread safe.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class DuplicateFilter {
+
+	// default sizes (about 0.5 MB)
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+	public static final int DEFAULT_WINDOW = 1 << 12;
+
+	// Bloom filter: about 1% of false positives
+	private static final int BITS_PER_KEY = 10;
+	private static final int HASHES = 7;
+
+	private static final DuplicateFilter GLOBAL = new DuplicateFilter();
+
+	/**
+	 * Filter used by the sessions.
+	 */
+	public static DuplicateFilter global() {
+		return GLOBAL;
+	}
+
+	/**
+	 * Exact check of the keys found only in the Bloom filter (e.g. a look-up in the stored measurements). A verifier
+	 * may ignore the device, if the measurements are not stored with it.
+	 */
+	public interface Verifier {
+
+		public boolean contains(String device, int patient, long time, int tenthsOfKg);
+
+	}
+
+	// sizes (the structures are null until the first use)
+	private int capacity;
+	private int window;
+
+	private int bloomMask;
+	private long[] current;
+	private long[] previous;
+	private int currentKeys;
+
+	// window: open addressing set of the keys + FIFO of the keys
+	private long[] table;
+	private int tableMask;
+	private long[] fifo;
+	private int fifoHead;
+	private int fifoSize;
+
+	private volatile Verifier verifier;
+
+	// statistics
+	private long checked;
+	private long duplicates;
+	private long uncertain;
+
+	public DuplicateFilter() {
+		this(DEFAULT_CAPACITY, DEFAULT_WINDOW);
+	}
+
+	/**
+	 * @param capacity
+	 *            Keys of a generation of the Bloom filter.
+	 * @param window
+	 *            Number of recent keys kept exactly.
+	 */
+	public DuplicateFilter(int capacity, int window) {
+		setSize(capacity, window);
+	}
+
+	/**
+	 * Change the sizes: the keys seen so far are forgotten, the structures are allocated again on the next use.
+	 * 
+	 * @param capacity
+	 *            Keys of a generation of the Bloom filter.
+	 * @param window
+	 *            Number of recent keys kept exactly.
+	 */
+	public synchronized void setSize(int capacity, int window) {
+		if (capacity < 1 || window < 1) {
+			throw new RuntimeException("capacity and window must be positive!");
+		}
+		this.capacity = capacity;
+		this.window = window;
+		current = null;
+		previous = null;
+		currentKeys = 0;
+		table = null;
+		fifo = null;
+		fifoHead = 0;
+		fifoSize = 0;
+	}
+
+	private void allocate() {
+		if (current != null) {
+			return;
+		}
+
+		int bits = Integer.highestOneBit(Math.max(64, capacity * BITS_PER_KEY - 1)) << 1;
+		bloomMask = bits - 1;
+		current = new long[bits >>> 6];
+		previous = new long[bits >>> 6];
+
+		int slots = Integer.highestOneBit(window) << 2;
+		table = new long[slots];
+		tableMask = slots - 1;
+		fifo = new long[window];
+	}
+
+	/**
+	 * Set the exact check of the keys found only in the Bloom filter.
+	 */
+	public void setVerifier(Verifier verifier) {
+		this.verifier = verifier;
+	}
+
+	/**
+	 * Check if a measurement has already been seen (and stored). A new measurement is not remembered: call
+	 * {@link #commit(String, int, long, int)} once it has been stored, so a measurement which cannot be stored is not
+	 * taken as a duplicate when the scale sends it again.
+	 * 
+	 * @param device
+	 *            Identity of the weight scale (e.g. its address), the same on every connection.
+	 * @param patient
+	 *            Patient number.
+	 * @param time
+	 *            Measure time (epoch seconds).
+	 * @param tenthsOfKg
+	 *            Weight (kg / 10).
+	 * @return True if it is a duplicate.
+	 */
+	public boolean check(String device, int patient, long time, int tenthsOfKg) {
+		long key = key(device, patient, time, tenthsOfKg);
+		long bloomKey = key(null, patient, time, tenthsOfKg);
+
+		synchronized (this) {
+			allocate();
+			checked++;
+
+			if (windowContains(key)) {
+				duplicates++;
+				return true;
+			}
+
+			if (bloomContains(bloomKey)) {
+				Verifier v = verifier;
+				if (v != null && v.contains(device, patient, time, tenthsOfKg)) {
+					duplicates++;
+					windowAdd(key);
+					return true;
+				}
+				if (v == null) {
+					uncertain++;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Remember a measurement which has been stored (e.g. appended to the journal), after
+	 * {@link #check(String, int, long, int)}.
+	 */
+	public void commit(String device, int patient, long time, int tenthsOfKg) {
+		long key = key(device, patient, time, tenthsOfKg);
+		long bloomKey = key(null, patient, time, tenthsOfKg);
+
+		synchronized (this) {
+			allocate();
+			if (windowContains(key)) {
+				return;
+			}
+			bloomAdd(bloomKey);
+			windowAdd(key);
+		}
+	}
+
+	/**
+	 * Remember a measurement stored before (e.g. by a previous run of the app), whose device is not known: a copy sent
+	 * again by the scale is found in the Bloom filter, then checked with the {@link Verifier}.
+	 */
+	public void seed(int patient, long time, int tenthsOfKg) {
+		long bloomKey = key(null, patient, time, tenthsOfKg);
+
+		synchronized (this) {
+			allocate();
+			bloomAdd(bloomKey);
+		}
+	}
+
+	public synchronized long getChecked() {
+		return checked;
+	}
+
+	public synchronized long getDuplicates() {
+		return duplicates;
+	}
+
+	/**
+	 * Keys found only in the Bloom filter and accepted without verification.
+	 */
+	public synchronized long getUncertain() {
+		return uncertain;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "DuplicateFilter [checked=" + checked + ", duplicates=" + duplicates + ", uncertain=" + uncertain
+				+ "]";
+	}
+
+	/**
+	 * 64 bit hash of a measurement (the key of the Bloom filter has a null device).
+	 */
+	private static long key(String device, int patient, long time, int tenthsOfKg) {
+		long h = device == null ? 0 : device.hashCode();
+		h = mix(h * 31 + patient);
+		h = mix(h ^ time);
+		h = mix(h ^ tenthsOfKg);
+		return h == 0 ? 1 : h;
+	}
+
+	/**
+	 * Finalizer of MurmurHash3.
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	// Bloom filter (double hashing)
+
+	private boolean bloomContains(long key) {
+		return bloomContains(current, key) || bloomContains(previous, key);
+	}
+
+	private boolean bloomContains(long[] bits, long key) {
+		int h1 = (int) key;
+		int h2 = (int) (key >>> 32) | 1;
+		for (int i = 0; i < HASHES; i++) {
+			int bit = (h1 + i * h2) & bloomMask;
+			if ((bits[bit >>> 6] & 1L << bit) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void bloomAdd(long key) {
+		if (currentKeys == capacity) {
+			// new generation
+			long[] bits = previous;
+			Arrays.fill(bits, 0);
+			previous = current;
+			current = bits;
+			currentKeys = 0;
+		}
+
+		int h1 = (int) key;
+		int h2 = (int) (key >>> 32) | 1;
+		for (int i = 0; i < HASHES; i++) {
+			int bit = (h1 + i * h2) & bloomMask;
+			current[bit >>> 6] |= 1L << bit;
+		}
+		currentKeys++;
+	}
+
+	// window (linear probing, backward shift deletion)
+
+	private boolean windowContains(long key) {
+		for (int i = slot(key);; i = (i + 1) & tableMask) {
+			if (table[i] == key) {
+				return true;
+			}
+			if (table[i] == 0) {
+				return false;
+			}
+		}
+	}
+
+	private void windowAdd(long key) {
+		if (fifoSize == fifo.length) {
+			windowRemove(fifo[fifoHead]);
+			fifoHead = (fifoHead + 1) % fifo.length;
+			fifoSize--;
+		}
+		fifo[(fifoHead + fifoSize) % fifo.length] = key;
+		fifoSize++;
+
+		int i = slot(key);
+		while (table[i] != 0 && table[i] != key) {
+			i = (i + 1) & tableMask;
+		}
+		table[i] = key;
+	}
+
+	private void windowRemove(long key) {
+		int i = slot(key);
+		while (table[i] != key) {
+			if (table[i] == 0) {
+				return;
+			}
+			i = (i + 1) & tableMask;
+		}
+
+		// shift back the following keys of the cluster
+		int j = i;
+		while (true) {
+			j = (j + 1) & tableMask;
+			if (table[j] == 0) {
+				break;
+			}
+			int k = slot(table[j]);
+			if (i <= j ? (i < k && k <= j) : (i < k || k <= j)) {
+				continue;
+			}
+			table[i] = table[j];
+			i = j;
+		}
+		table[i] = 0;
+	}
+
+	private int slot(long key) {
+		return (int) (key ^ key >>> 32) & tableMask;
+	}
+
+}
@@ -0,0 +1,297 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.service;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import eu.fbk.trec.andweight.metrics.MetricsRegistry;
+import eu.fbk.trec.andweight.utils.Logger;
+
+/**
+ * Deliver events on a single dispatcher thread: the producers (e.g. the sessions) publish into a lock-free bounded
+ * ring (multi-producer, single-consumer) and never wait for the delivery.
+ * 
+ * Each slot of the ring has a sequence number: a producer claims a slot with a CAS on the tail, writes the event and
+ * then publishes the sequence; the dispatcher reads the slots in order. The dispatcher parks when the ring is empty and
+ * is unparked by the next producer. A producer waits only if the ring is full (the dispatcher is behind by a whole
+ * ring). A producer of a droppable event waits at most maxWait, then the event is dropped, so a slow delivery never
+ * stalls a session; a control event waits until it is published.
+ * 
+ * The contention is counted: failed CAS on the tail, waits on a full ring, wake-ups of the dispatcher. The time waited
+ * on a full ring is recorded in the queueBlocked metric of the {@link MetricsRegistry}.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class EventDispatcher implements Closeable {
+	private static final String TAG = EventDispatcher.class.getSimpleName();
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * Default maximum wait of a producer on a full ring (ms).
+	 */
+	public static final long DEFAULT_MAX_WAIT = 100;
+
+	/**
+	 * Performs the delivery of the events (on the dispatcher thread).
+	 */
+	public interface Handler {
+
+		public void onEvent(int type, Object payload);
+
+	}
+
+	private final Handler handler;
+	private final int mask;
+	private final long maxWait;
+
+	// ring: sequence of every slot, then type and payload (published by the sequence)
+	private final AtomicLongArray sequences;
+	private final int[] types;
+	private final Object[] payloads;
+
+	// next slot to claim (producers), next slot to read (dispatcher only)
+	private final AtomicLong tail = new AtomicLong();
+	private long head;
+
+	// dispatcher
+	private final Thread thread;
+	private volatile boolean sleeping;
+	private volatile boolean closed;
+
+	// contention
+	private final AtomicLong casFailures = new AtomicLong();
+	private final AtomicLong fullWaits = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong wakeups = new AtomicLong();
+	private volatile long delivered;
+
+	public EventDispatcher(Handler handler) {
+		this(handler, DEFAULT_CAPACITY, DEFAULT_MAX_WAIT);
+	}
+
+	/**
+	 * Create and start a dispatcher.
+	 * 
+	 * @param capacity
+	 *            Size of the ring (rounded up to a power of 2).
+	 * @param maxWait
+	 *            Maximum wait of a producer on a full ring (ms).
+	 */
+	public EventDispatcher(Handler handler, int capacity, long maxWait) {
+		if (handler == null) {
+			throw new RuntimeException("Handler cannot be null!");
+		}
+		if (capacity < 2) {
+			throw new RuntimeException("capacity must be at least 2!");
+		}
+
+		int size = Integer.highestOneBit(capacity - 1) << 1;
+		this.handler = handler;
+		this.mask = size - 1;
+		this.maxWait = TimeUnit.MILLISECONDS.toNanos(maxWait);
+		this.sequences = new AtomicLongArray(size);
+		this.types = new int[size];
+		this.payloads = new Object[size];
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		}, TAG);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Publish an event that can be lost, e.g. a measurement or a metric (lock-free; waits only if the ring is full, at
+	 * most maxWait).
+	 * 
+	 * @return False if the dispatcher is closed or the ring stayed full (the event is dropped).
+	 */
+	public boolean publish(int type, Object payload) {
+		return publish(type, payload, maxWait);
+	}
+
+	/**
+	 * Publish a control event, which is never dropped (lock-free; if the ring is full, waits until the dispatcher
+	 * frees a slot). Not to be called by the handler, which is the one that frees the slots.
+	 * 
+	 * @return False if the dispatcher is closed (the event is dropped).
+	 */
+	public boolean publishControl(int type, Object payload) {
+		return publish(type, payload, Long.MAX_VALUE);
+	}
+
+	private boolean publish(int type, Object payload, long maxWait) {
+		if (closed) {
+			return false;
+		}
+
+		long waitStart = 0;
+		long position;
+		while (true) {
+			position = tail.get();
+			int slot = (int) position & mask;
+			long difference = sequences.get(slot) - position;
+
+			if (difference == 0) {
+				// the slot is free: claim it
+				if (tail.compareAndSet(position, position + 1)) {
+					types[slot] = type;
+					payloads[slot] = payload;
+					sequences.set(slot, position + 1);
+					break;
+				}
+				casFailures.incrementAndGet();
+
+			} else if (difference < 0) {
+				// full: the dispatcher has not read this slot yet
+				fullWaits.incrementAndGet();
+				if (waitStart == 0) {
+					waitStart = System.nanoTime();
+				} else if (System.nanoTime() - waitStart > maxWait) {
+					MetricsRegistry.global().queueBlocked(System.nanoTime() - waitStart);
+					dropped.incrementAndGet();
+					Logger.w(TAG, "ring full, event " + type + " dropped");
+					return false;
+				}
+				wakeUp();
+				Thread.yield();
+				if (closed) {
+					return false;
+				}
+			}
+		}
+		if (waitStart != 0) {
+			MetricsRegistry.global().queueBlocked(System.nanoTime() - waitStart);
+		}
+
+		wakeUp();
+		return true;
+	}
+
+	/**
+	 * Deliver the events already published and stop the dispatcher thread.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Wait for the dispatcher thread to end (after {@link #close()}).
+	 */
+	public void join() throws InterruptedException {
+		thread.join();
+	}
+
+	/**
+	 * Events published and not yet delivered.
+	 */
+	public long getPending() {
+		return tail.get() - delivered;
+	}
+
+	public long getDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * Failed attempts to claim a slot (another producer claimed it first).
+	 */
+	public long getCasFailures() {
+		return casFailures.get();
+	}
+
+	/**
+	 * Times a producer found the ring full.
+	 */
+	public long getFullWaits() {
+		return fullWaits.get();
+	}
+
+	/**
+	 * Events dropped because the ring stayed full for maxWait.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Times the dispatcher was unparked by a producer.
+	 */
+	public long getWakeups() {
+		return wakeups.get();
+	}
+
+	@Override
+	public String toString() {
+		return "EventDispatcher [delivered=" + delivered + ", pending=" + getPending() + ", casFailures="
+				+ casFailures + ", fullWaits=" + fullWaits + ", dropped=" + dropped + ", wakeups=" + wakeups + "]";
+	}
+
+	private void wakeUp() {
+		if (sleeping) {
+			sleeping = false;
+			wakeups.incrementAndGet();
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * Dispatcher loop.
+	 */
+	private void dispatch() {
+		while (true) {
+			int slot = (int) head & mask;
+
+			if (sequences.get(slot) == head + 1) {
+				int type = types[slot];
+				Object payload = payloads[slot];
+				payloads[slot] = null;
+
+				// free the slot for the next round
+				sequences.lazySet(slot, head + mask + 1);
+				head++;
+
+				try {
+					handler.onEvent(type, payload);
+				} catch (RuntimeException e) {
+					Logger.e(TAG, "delivery failed", e);
+				}
+				delivered = head;
+				continue;
+			}
+
+			// empty
+			if (closed && tail.get() == head) {
+				break;
+			}
+			sleeping = true;
+			if (sequences.get(slot) != head + 1 && !closed) {
+				LockSupport.park(this);
+			}
+			sleeping = false;
+		}
+
+		Logger.v(TAG, "END " + this);
+	}
+
+}
@@ -0,0 +1,511 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.service;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import eu.fbk.trec.andweight.metrics.MetricsRegistry;
+import eu.fbk.trec.andweight.model.AndWeight;
+import eu.fbk.trec.andweight.utils.Logger;
+
+/**
+ * Bounded hand-off of the measurements from the sessions (producers) to a consumer thread.
+ * 
+ * At most capacity measurements are kept in memory; when the queue is full, the {@link Policy} decides:
+ * <ul>
+ * <li>BLOCK: the producer waits for a free place, so the ack is delayed and the weight scale slows down; the wait is
+ * bounded (maxBlock), then the oldest measurement is dropped, so the scale never times out on a slow consumer;</li>
+ * <li>SPILL: the measurement is written to a file, and read back when the measurements in memory have been consumed
+ * (the measurements keep their order); the records already read are removed from the file once they are many. If
+ * the file cannot be written, the new measurement is dropped;</li>
+ * <li>DROP_OLDEST: the oldest measurement is dropped.</li>
+ * </ul>
+ * The measurements are already in the journal before they are queued, so a dropped (or spilled and lost) measurement
+ * is missing only until the journal is loaded again. A measurement can carry its sequence number in the journal, which
+ * the consumer receives with it (e.g. to mark it as delivered).
+ * 
+ * The depth of the queue, the time spent blocked and the dropped and spilled measurements are recorded in the
+ * {@link MetricsRegistry}.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class HandoffQueue implements Closeable {
+	private static final String TAG = HandoffQueue.class.getSimpleName();
+
+	/**
+	 * What to do with a measurement when the queue is full.
+	 */
+	public enum Policy {
+		BLOCK, SPILL, DROP_OLDEST
+	}
+
+	/**
+	 * Default maximum wait of a producer with the BLOCK policy (ms), below the timeout of the weight scales.
+	 */
+	public static final long DEFAULT_MAX_BLOCK = 2000;
+
+	// spilled record: weight (float), measure time (long, ms), patient (short), sequence (long)
+	private static final int RECORD_LENGHT = 22;
+
+	// consumed bytes at the start of the spill file that trigger a compaction (if they are at least the unread ones)
+	private static final long COMPACT_THRESHOLD = 64 * 1024;
+
+	// initial size of the memory ring (grown up to the capacity)
+	private static final int INITIAL_SIZE = 16;
+
+	private final int capacity;
+	private final Policy policy;
+	private final File spillFile;
+	private final long maxBlock;
+	private final MetricsRegistry metrics = MetricsRegistry.global();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private boolean closed;
+
+	// measurements in memory: ring of the weights and of their sequence numbers (guarded by lock)
+	private AndWeight[] weights;
+	private long[] sequences;
+	private int head;
+	private int count;
+
+	// spilled measurements not yet consumed (guarded by lock)
+	private FileChannel spill;
+	private long spillRead;
+	private long spillWrite;
+	private int spilled;
+	private ByteBuffer spillBuffer = ByteBuffer.allocate(RECORD_LENGHT);
+
+	// counters
+	private long blockedNanos;
+	private long dropped;
+	private long totalSpilled;
+	private int maxDepth;
+
+	/**
+	 * Create a queue which blocks the producers when full.
+	 */
+	public HandoffQueue(int capacity) {
+		this(capacity, Policy.BLOCK, null, DEFAULT_MAX_BLOCK);
+	}
+
+	/**
+	 * Create a queue.
+	 * 
+	 * @param capacity
+	 *            Maximum number of measurements in memory.
+	 * @param policy
+	 *            What to do when the queue is full.
+	 * @param spillFile
+	 *            File of the spilled measurements (required by the SPILL policy, truncated).
+	 * @param maxBlock
+	 *            Maximum wait of a producer with the BLOCK policy (ms).
+	 */
+	public HandoffQueue(int capacity, Policy policy, File spillFile, long maxBlock) {
+		if (capacity < 1) {
+			throw new RuntimeException("capacity must be positive!");
+		}
+		if (policy == null) {
+			throw new RuntimeException("Policy cannot be null!");
+		}
+		if (policy == Policy.SPILL && spillFile == null) {
+			throw new RuntimeException("The SPILL policy needs a file!");
+		}
+		this.capacity = capacity;
+		this.policy = policy;
+		this.spillFile = spillFile;
+		this.maxBlock = maxBlock;
+		this.weights = new AndWeight[Math.min(capacity, INITIAL_SIZE)];
+		this.sequences = new long[weights.length];
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Queue a measurement (called by the producers).
+	 * 
+	 * @return False if the queue is closed (the measurement is not queued).
+	 */
+	public boolean offer(AndWeight weight) {
+		return offer(weight, -1);
+	}
+
+	/**
+	 * Queue a measurement with its sequence number in the journal (called by the producers).
+	 * 
+	 * @return False if the queue is closed (the measurement is not queued).
+	 */
+	public boolean offer(AndWeight weight, long sequence) {
+		lock.lock();
+		try {
+			if (closed) {
+				return false;
+			}
+
+			if (spilled > 0) {
+				// after the ones already spilled
+				spillOrDrop(weight, sequence);
+			} else if (count < capacity) {
+				add(weight, sequence);
+			} else {
+				switch (policy) {
+				case BLOCK:
+					block(weight, sequence);
+					break;
+				case SPILL:
+					spillOrDrop(weight, sequence);
+					break;
+				case DROP_OLDEST:
+					dropOldest(weight, sequence);
+					break;
+				}
+			}
+
+			int depth = count + spilled;
+			if (depth > maxDepth) {
+				maxDepth = depth;
+			}
+			metrics.queued(depth);
+
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait for at least 1 measurement, then move up to max measurements to the batch, in order (called by the
+	 * consumer).
+	 * 
+	 * @return Number of measurements moved, 0 if the queue is closed and empty.
+	 */
+	public int take(List<AndWeight> batch, int max) throws InterruptedException {
+		return take(batch, null, max);
+	}
+
+	/**
+	 * Wait for at least 1 measurement, then move up to max measurements to the batch, in order (called by the
+	 * consumer).
+	 * 
+	 * @param sequences
+	 *            Receives the sequence numbers of the measurements moved (from index 0, -1 if none), or null.
+	 * @return Number of measurements moved, 0 if the queue is closed and empty.
+	 */
+	public int take(List<AndWeight> batch, long[] sequences, int max) throws InterruptedException {
+		if (sequences != null && sequences.length < max) {
+			throw new RuntimeException("sequences shorter than max!");
+		}
+
+		lock.lockInterruptibly();
+		try {
+			while (count == 0 && spilled == 0) {
+				if (closed) {
+					closeSpill();
+					return 0;
+				}
+				notEmpty.await();
+			}
+
+			int n = 0;
+			while (n < max && count > 0) {
+				if (sequences != null) {
+					sequences[n] = this.sequences[head];
+				}
+				batch.add(poll());
+				n++;
+			}
+			if (n < max && spilled > 0) {
+				n += readSpilled(batch, sequences, n, max - n);
+			}
+
+			notFull.signalAll();
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Number of queued measurements (in memory and spilled).
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return count + spilled;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop accepting measurements: the consumer takes the queued ones, then {@link #take(List, int)} returns 0.
+	 */
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait up to maxBlock for a free place, then drop the oldest measurement.
+	 */
+	private void block(AndWeight weight, long sequence) {
+		long start = System.nanoTime();
+		long nanos = TimeUnit.MILLISECONDS.toNanos(maxBlock);
+		try {
+			while (count >= capacity && nanos > 0 && !closed) {
+				nanos = notFull.awaitNanos(nanos);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		long blocked = System.nanoTime() - start;
+		blockedNanos += blocked;
+		metrics.queueBlocked(blocked);
+
+		if (count < capacity) {
+			add(weight, sequence);
+		} else {
+			Logger.w(TAG, "consumer too slow, blocked " + blocked / 1000000 + " ms");
+			dropOldest(weight, sequence);
+		}
+	}
+
+	/**
+	 * Replace the oldest measurement in memory with this one (only when nothing is spilled, so the order is kept).
+	 */
+	private void dropOldest(AndWeight weight, long sequence) {
+		if (count > 0) {
+			poll();
+		}
+		add(weight, sequence);
+		dropped++;
+		metrics.queueDropped();
+	}
+
+	/**
+	 * Append a measurement to the memory ring, growing it if needed (up to the capacity).
+	 */
+	private void add(AndWeight weight, long sequence) {
+		if (count == weights.length) {
+			int size = (int) Math.min(capacity, 2L * weights.length);
+			AndWeight[] w = new AndWeight[size];
+			long[] s = new long[size];
+			int tail = weights.length - head;
+			System.arraycopy(weights, head, w, 0, tail);
+			System.arraycopy(weights, 0, w, tail, head);
+			System.arraycopy(sequences, head, s, 0, tail);
+			System.arraycopy(sequences, 0, s, tail, head);
+			weights = w;
+			sequences = s;
+			head = 0;
+		}
+		int i = (head + count) % weights.length;
+		weights[i] = weight;
+		sequences[i] = sequence;
+		count++;
+	}
+
+	/**
+	 * Remove the oldest measurement of the memory ring (not empty).
+	 */
+	private AndWeight poll() {
+		AndWeight weight = weights[head];
+		weights[head] = null;
+		head = (head + 1) % weights.length;
+		count--;
+		return weight;
+	}
+
+	/**
+	 * Append a measurement to the spill file; if it cannot be written, drop it (the measurements in memory and the
+	 * ones already spilled are older, so they are kept and keep their order).
+	 */
+	private void spillOrDrop(AndWeight weight, long sequence) {
+		long start = spillWrite;
+		try {
+			if (spill == null) {
+				spill = new RandomAccessFile(spillFile, "rw").getChannel();
+				spill.truncate(0);
+			}
+
+			spillBuffer.clear();
+			spillBuffer.putFloat(weight.getWeight());
+			spillBuffer.putLong(weight.getMeasureDate() == null ? 0 : weight.getMeasureDate().getTime());
+			spillBuffer.putShort((short) weight.getPatient());
+			spillBuffer.putLong(sequence);
+			spillBuffer.flip();
+			while (spillBuffer.hasRemaining()) {
+				spillWrite += spill.write(spillBuffer, spillWrite);
+			}
+
+			spilled++;
+			totalSpilled++;
+			metrics.queueSpilled();
+
+		} catch (IOException e) {
+			Logger.e(TAG, "cannot spill the measurement, dropped...", e);
+			// a partial record is overwritten by the next one
+			spillWrite = start;
+			dropped++;
+			metrics.queueDropped();
+		}
+	}
+
+	/**
+	 * Read up to max spilled measurements, in order (their sequence numbers from the index offset).
+	 */
+	private int readSpilled(List<AndWeight> batch, long[] sequences, int offset, int max) {
+		int n = Math.min(max, spilled);
+		if (spillBuffer.capacity() < n * RECORD_LENGHT) {
+			spillBuffer = ByteBuffer.allocate(n * RECORD_LENGHT);
+		}
+
+		spillBuffer.clear();
+		spillBuffer.limit(n * RECORD_LENGHT);
+		try {
+			while (spillBuffer.hasRemaining()) {
+				int bytes = spill.read(spillBuffer, spillRead + spillBuffer.position());
+				if (bytes < 0) {
+					throw new IOException("Spill file truncated");
+				}
+			}
+		} catch (IOException e) {
+			Logger.e(TAG, "cannot read the spilled measurements...", e);
+			dropped += spilled;
+			resetSpill();
+			return 0;
+		}
+		spillBuffer.flip();
+
+		for (int i = 0; i < n; i++) {
+			float weight = spillBuffer.getFloat();
+			long time = spillBuffer.getLong();
+			int patient = spillBuffer.getShort();
+			long sequence = spillBuffer.getLong();
+			batch.add(new AndWeight(weight, time == 0 ? null : new Date(time), patient));
+			if (sequences != null) {
+				sequences[offset + i] = sequence;
+			}
+		}
+		spillRead += n * RECORD_LENGHT;
+		spilled -= n;
+
+		if (spilled == 0) {
+			resetSpill();
+		} else if (spillRead >= COMPACT_THRESHOLD && spillRead >= spillWrite - spillRead) {
+			compactSpill();
+		}
+		return n;
+	}
+
+	/**
+	 * Move the unread records to the beginning of the spill file and truncate it, so a producer that is always ahead
+	 * of the consumer does not grow the file with the records already consumed. The unread bytes are at most the
+	 * consumed ones, so the copy does not overlap and its cost is covered by the reads since the last compaction.
+	 */
+	private void compactSpill() {
+		long unread = spillWrite - spillRead;
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(unread, COMPACT_THRESHOLD));
+		try {
+			for (long position = 0; position < unread;) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), unread - position));
+				while (buffer.hasRemaining()) {
+					if (spill.read(buffer, spillRead + position + buffer.position()) < 0) {
+						throw new IOException("Spill file truncated");
+					}
+				}
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					position += spill.write(buffer, position);
+				}
+			}
+			spill.truncate(unread);
+		} catch (IOException e) {
+			// the file is not consistent any more
+			Logger.e(TAG, "cannot compact the spill file...", e);
+			dropped += spilled;
+			resetSpill();
+			return;
+		}
+		spillRead = 0;
+		spillWrite = unread;
+	}
+
+	/**
+	 * Start again from the beginning of the spill file.
+	 */
+	private void resetSpill() {
+		spilled = 0;
+		spillRead = 0;
+		spillWrite = 0;
+		try {
+			spill.truncate(0);
+		} catch (IOException e) {
+			Logger.e(TAG, "cannot truncate the spill file...", e);
+		}
+	}
+
+	/**
+	 * Close and delete the spill file (at the end, when empty).
+	 */
+	private void closeSpill() {
+		if (spill == null) {
+			return;
+		}
+		try {
+			spill.close();
+		} catch (IOException e) {
+			Logger.e(TAG, "close() of spill file failed", e);
+		}
+		spill = null;
+		if (!spillFile.delete()) {
+			Logger.w(TAG, "cannot delete " + spillFile);
+		}
+	}
+
+	@Override
+	public String toString() {
+		lock.lock();
+		try {
+			return TAG + " [policy=" + policy + ", capacity=" + capacity + ", depth=" + (count + spilled)
+					+ ", maxDepth=" + maxDepth + ", blocked=" + blockedNanos / 1000000 + "ms, dropped=" + dropped
+					+ ", spilled=" + totalSpilled + "]";
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
@@ -10,59 +10,278 @@
 package eu.fbk.trec.andweight.service;
 
 import java.io.IOException;
-import java.util.UUID;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
-import android.util.Log;
+import eu.fbk.trec.andweight.metrics.MetricsRegistry;
+import eu.fbk.trec.andweight.storage.MeasurementJournal;
+import eu.fbk.trec.andweight.transport.BluetoothServer;
+import eu.fbk.trec.andweight.transport.ScaleConnection;
+import eu.fbk.trec.andweight.transport.ScaleServer;
+import eu.fbk.trec.andweight.utils.Logger;
 
+/**
+ * This thread listens for incoming connections from the weight scales (over BlueTooth by default, see ScaleServer).
+ * 
+ * With a single connection allowed, the first connection is accepted and the listener is closed. With more connections
+ * allowed, the listener stays open and every scale is served by its own ConnectionTask, at most maxConnections at the
+ * same time: when all the slots are busy, the next connection is accepted only after a session ends.
+ * 
+ * A warm listener keeps the server socket open also with a single connection allowed: the weight scale which
+ * reconnects after a session finds the accept already armed, instead of a listener which is being opened again (and
+ * does not time out into PWCAPI). The time from the end of a session to the next connection is recorded in the
+ * {@link MetricsRegistry}.
+ * 
+ * The sessions run on the given Executor (by default a new thread for each session). On shutdown, the owner cancels
+ * the listener, closes the connections of the running sessions and waits for them to end before closing what they use
+ * (e.g. the journal).
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
 public class ListenThread extends Thread {
 	private static final String TAG = ListenThread.class.getSimpleName();
 
-	// BlueTooth
-	private static final String NAME = "Service Name";
-	private static final UUID uuid = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-
+	private final ScaleServer server;
 	private final WeightListener listener;
+	private final Executor executor;
+	private final MeasurementJournal journal;
+	private final int maxConnections;
+	private final Semaphore slots;
+	private final boolean warm;
+
+	// connections of the running sessions
+	private final Set<ScaleConnection> connections = Collections
+			.newSetFromMap(new ConcurrentHashMap<ScaleConnection, Boolean>());
+
+	// end of the last session (ns), 0 if none
+	private volatile long lastDisconnect;
+
+	// set by cancel()
+	private volatile boolean canceled;
 
 	public ListenThread(WeightListener listener) {
-		if (listener == null) {
-			throw new RuntimeException("Listener cannot be null!");
+		this(listener, 1);
+	}
+
+	public ListenThread(WeightListener listener, int maxConnections) {
+		this(new BluetoothServer(), listener, maxConnections);
+	}
+
+	public ListenThread(ScaleServer server, WeightListener listener, int maxConnections) {
+		this(server, listener, maxConnections, SessionExecutors.threadPerSession(listener));
+	}
+
+	public ListenThread(ScaleServer server, WeightListener listener, int maxConnections, Executor executor) {
+		this(server, listener, maxConnections, executor, null);
+	}
+
+	/**
+	 * @param journal
+	 *            Journal of the measurements of all the sessions, or null.
+	 */
+	public ListenThread(ScaleServer server, WeightListener listener, int maxConnections, Executor executor,
+			MeasurementJournal journal) {
+		this(server, listener, maxConnections, executor, journal, false);
+	}
+
+	/**
+	 * @param warm
+	 *            Keep listening after the first connection also if maxConnections is 1.
+	 */
+	public ListenThread(ScaleServer server, WeightListener listener, int maxConnections, Executor executor,
+			MeasurementJournal journal, boolean warm) {
+		if (server == null || listener == null || executor == null) {
+			throw new RuntimeException("Server, Listener and Executor cannot be null!");
+		}
+		if (maxConnections < 1) {
+			throw new RuntimeException("maxConnections must be positive!");
 		}
+		this.server = server;
 		this.listener = listener;
+		this.executor = executor;
+		this.journal = journal;
+		this.maxConnections = maxConnections;
+		this.slots = new Semaphore(maxConnections);
+		this.warm = warm;
 
 		// communicate to the service that this thread as been created
 		listener.onNewThread(this);
 	}
 
+	/**
+	 * True if this thread keeps listening after the first connection.
+	 */
+	public boolean isPersistent() {
+		return warm || maxConnections > 1;
+	}
+
 	@Override
 	public void run() {
-		Log.v(TAG, "START ListenThread");
+		Logger.v(TAG, "START ListenThread");
+
+		try {
+			server.open();
+
+			if (isPersistent()) {
+				acceptMany();
+			} else {
+				acceptOne();
+			}
+
+		} catch (IOException e) {
+			if (!canceled) {
+				Logger.e(TAG, "cannot accept incoming connections...", e);
+				listener.onError();
+			}
+		} catch (InterruptedException e) {
+			Logger.v(TAG, "interrupted...");
+		} finally {
+			close();
+		}
 
+		Logger.v(TAG, "END ListenThread");
+	}
+
+	/**
+	 * Stop listening for new connections (the running sessions are not affected).
+	 */
+	public void cancel() {
+		canceled = true;
+		interrupt();
+		close();
+	}
+
+	/**
+	 * Close the connections of the running sessions, so that they end also if blocked in a read (which is not
+	 * interruptible on BlueTooth).
+	 */
+	public void closeSessions() {
+		for (ScaleConnection socket : connections) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				Logger.e(TAG, "close() of connect socket failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Wait for the running sessions to end (e.g. after {@link #cancel()} and {@link #closeSessions()}).
+	 * 
+	 * @return True if all the sessions have ended, false if the timeout expired.
+	 */
+	public boolean awaitSessions(long timeout, TimeUnit unit) throws InterruptedException {
+		if (!slots.tryAcquire(maxConnections, timeout, unit)) {
+			return false;
+		}
+		slots.release(maxConnections);
+		return true;
+	}
+
+	/**
+	 * Accept only 1 incoming connection.
+	 */
+	private void acceptOne() throws IOException, InterruptedException {
+		slots.acquire();
+
+		ScaleConnection socket;
 		try {
-			BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-			BluetoothServerSocket s = bluetoothAdapter.listenUsingRfcommWithServiceRecord(NAME, uuid);
+			Logger.i(TAG, "before connection");
+			socket = server.accept();
+			Logger.i(TAG, "connection from: " + socket.getName());
+		} catch (IOException e) {
+			slots.release();
+			throw e;
+		}
+
+		serve(socket);
+	}
 
-			while (true) {
-				Log.i(TAG, "before connection");
-				BluetoothSocket socket = s.accept();
-				Log.i(TAG, "connection from: " + socket.getRemoteDevice().getName());
+	/**
+	 * Accept connections until canceled, serving at most maxConnections at the same time.
+	 */
+	private void acceptMany() throws IOException, InterruptedException {
+		while (!canceled) {
 
-				ConnectionThread connectedThread = new ConnectionThread(socket, listener);
-				connectedThread.start();
-				s.close();
+			// wait for a free slot
+			slots.acquire();
 
-				// accept only 1 incoming connection
-				break;
+			ScaleConnection socket;
+			try {
+				Logger.i(TAG, "before connection (" + slots.availablePermits() + " slots left)");
+				socket = server.accept();
+				Logger.i(TAG, "connection from: " + socket.getName());
+			} catch (IOException e) {
+				slots.release();
+				throw e;
 			}
+			long last = lastDisconnect;
+			MetricsRegistry.global().accepted(last == 0 ? -1 : System.nanoTime() - last);
 
+			serve(socket);
+		}
+	}
+
+	/**
+	 * Run the session of an accepted connection, which holds a slot: the slot is released when the session ends.
+	 */
+	private void serve(final ScaleConnection socket) {
+		final ConnectionTask task;
+		try {
+			task = new ConnectionTask(socket, listener, journal);
 		} catch (IOException e) {
-			Log.e(TAG, "cannot accept incoming connections...", e);
+			slots.release();
+			closeQuietly(socket);
+			Logger.e(TAG, "cannot open the connection...", e);
 			listener.onError();
+			return;
+		}
+
+		connections.add(socket);
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						connections.remove(socket);
+						lastDisconnect = System.nanoTime();
+						slots.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the executor has been shut down
+			connections.remove(socket);
+			slots.release();
+			closeQuietly(socket);
+			Logger.w(TAG, "session rejected: " + e);
+		}
+	}
+
+	private static void closeQuietly(ScaleConnection socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			Logger.e(TAG, "close() of connect socket failed", e);
 		}
+	}
 
-		Log.v(TAG, "END ListenThread");
+	/**
+	 * Close the server socket, if open.
+	 */
+	private void close() {
+		try {
+			server.close();
+		} catch (IOException e) {
+			Logger.e(TAG, "close() of server socket failed", e);
+		}
 	}
 
 }
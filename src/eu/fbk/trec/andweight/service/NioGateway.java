@@ -0,0 +1,398 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import eu.fbk.trec.andweight.storage.MeasurementJournal;
+import eu.fbk.trec.andweight.utils.FrameLog;
+import eu.fbk.trec.andweight.utils.Logger;
+
+/**
+ * Non-blocking TCP gateway for weight scales bridged over TCP (e.g. RFCOMM to TCP at the edge).
+ * 
+ * An acceptor thread accepts the connections and distributes them round-robin to a fixed number of selector threads.
+ * Every selector thread serves many connections, each one with its own {@link ScaleSession}, so the packet decoding and
+ * the responses are the same as in {@link ConnectionThread}. The listener is notified from the selector threads and
+ * must be thread safe.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class NioGateway implements Closeable {
+	private static final String TAG = NioGateway.class.getSimpleName();
+
+	// initial size of the output buffer of a connection
+	private static final int OUTPUT_CAPACITY = 64;
+
+	private final InetSocketAddress address;
+	private final WeightListener listener;
+	private final MeasurementJournal journal;
+	private final Worker[] workers;
+
+	private ServerSocketChannel serverChannel;
+	private Thread acceptor;
+	private volatile boolean running;
+
+	/**
+	 * Create a gateway with one selector thread per processor.
+	 */
+	public NioGateway(InetSocketAddress address, WeightListener listener) {
+		this(address, listener, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create a gateway.
+	 * 
+	 * @param address
+	 *            Address to listen to (port 0 for any free port).
+	 * @param listener
+	 *            Listener of all the sessions.
+	 * @param threads
+	 *            Number of selector threads.
+	 */
+	public NioGateway(InetSocketAddress address, WeightListener listener, int threads) {
+		this(address, listener, threads, null);
+	}
+
+	/**
+	 * Create a gateway which records the measurements in a journal.
+	 * 
+	 * @param journal
+	 *            Journal of the measurements of all the connections, or null.
+	 */
+	public NioGateway(InetSocketAddress address, WeightListener listener, int threads, MeasurementJournal journal) {
+		if (address == null || listener == null) {
+			throw new RuntimeException("Address and Listener cannot be null!");
+		}
+		if (threads < 1) {
+			throw new RuntimeException("threads must be positive!");
+		}
+		this.address = address;
+		this.listener = listener;
+		this.journal = journal;
+		this.workers = new Worker[threads];
+	}
+
+	/**
+	 * Start listening and serving the connections.
+	 */
+	public synchronized void start() throws IOException {
+		if (running) {
+			throw new IllegalStateException("Already started");
+		}
+
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(address);
+		running = true;
+
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker(Selector.open());
+			workers[i].thread = new Thread(workers[i], TAG + "-selector-" + i);
+			workers[i].thread.start();
+		}
+
+		acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, TAG + "-acceptor");
+		acceptor.start();
+
+		Logger.i(TAG, "listening on " + serverChannel.socket().getLocalSocketAddress());
+	}
+
+	/**
+	 * Local port, useful when listening on port 0.
+	 */
+	public int getLocalPort() {
+		ServerSocketChannel s = serverChannel;
+		return s == null ? -1 : s.socket().getLocalPort();
+	}
+
+	/**
+	 * Stop accepting connections and close all the open ones.
+	 */
+	@Override
+	public synchronized void close() {
+		if (!running) {
+			return;
+		}
+		running = false;
+
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			Logger.e(TAG, "close() of server channel failed", e);
+		}
+
+		for (Worker w : workers) {
+			w.selector.wakeup();
+		}
+	}
+
+	/**
+	 * Accept the connections and hand them to the selector threads.
+	 */
+	private void accept() {
+		int next = 0;
+
+		while (running) {
+			try {
+				SocketChannel channel = serverChannel.accept();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+
+				workers[next].register(channel);
+				next = (next + 1) % workers.length;
+
+			} catch (IOException e) {
+				if (running) {
+					Logger.e(TAG, "cannot accept incoming connections...", e);
+					listener.onError();
+				}
+				break;
+			}
+		}
+
+		Logger.v(TAG, "END acceptor");
+	}
+
+	/**
+	 * Selector thread.
+	 */
+	private class Worker implements Runnable {
+		private final Selector selector;
+		private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+		private Thread thread;
+
+		Worker(Selector selector) {
+			this.selector = selector;
+		}
+
+		/**
+		 * Serve a new connection (called by the acceptor).
+		 */
+		void register(SocketChannel channel) {
+			pending.add(channel);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					selector.select();
+					registerPending();
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+
+						Connection connection = (Connection) key.attachment();
+						try {
+							if (key.isReadable()) {
+								connection.read();
+							}
+							if (key.isValid() && key.isWritable()) {
+								connection.flush();
+							}
+						} catch (IOException e) {
+							Logger.e(TAG, "disconnected...");
+							connection.close();
+						} catch (RuntimeException e) {
+							// e.g. a malformed frame in the decoders: end this connection only, not the worker
+							Logger.e(TAG, "session failed, disconnected...", e);
+							connection.close();
+						}
+					}
+				}
+			} catch (IOException | ClosedSelectorException e) {
+				Logger.e(TAG, "selector failed", e);
+			} finally {
+				shutdown();
+			}
+		}
+
+		private void registerPending() {
+			SocketChannel channel;
+			while ((channel = pending.poll()) != null) {
+				try {
+					SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+					key.attach(new Connection(channel, key));
+					listener.onConnect();
+				} catch (IOException | RuntimeException e) {
+					Logger.e(TAG, "cannot register the connection", e);
+					closeQuietly(channel);
+				}
+			}
+		}
+
+		private void shutdown() {
+			SocketChannel channel;
+			while ((channel = pending.poll()) != null) {
+				closeQuietly(channel);
+			}
+
+			if (selector.isOpen()) {
+				for (SelectionKey key : selector.keys()) {
+					((Connection) key.attachment()).close();
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					Logger.e(TAG, "close() of selector failed", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * State of a single connection.
+	 */
+	private class Connection implements ScaleSession.Writer {
+		private final SocketChannel channel;
+		private final SelectionKey key;
+		private final ScaleSession session;
+		private final long accepted = System.nanoTime();
+		private ByteBuffer output = ByteBuffer.allocateDirect(OUTPUT_CAPACITY);
+		private boolean closed;
+
+		// read time of the acks in the output, not yet written
+		private long[] ackReads = new long[8];
+		private int acks;
+
+		Connection(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+			this.session = new ScaleSession(listener, journal);
+			this.session.setName(String.valueOf(channel.socket().getRemoteSocketAddress()));
+			this.session.setDevice(channel.socket().getInetAddress().getHostAddress());
+		}
+
+		/**
+		 * Read the available bytes and handle the complete packets.
+		 */
+		void read() throws IOException {
+			int bytes = session.framer().read(channel);
+			if (bytes < 0) {
+				close();
+				return;
+			}
+			if (bytes > 0) {
+				session.metrics().firstByte(System.nanoTime() - accepted);
+			}
+
+			// log message
+			FrameLog.in(session.framer().buffer(), session.framer().readOffset(), bytes);
+
+			session.process(this, bytes);
+			flush();
+		}
+
+		/**
+		 * Queue a response (written by flush).
+		 */
+		@Override
+		public void write(byte[] packet, long readTime) {
+			if (readTime >= 0) {
+				if (acks == ackReads.length) {
+					ackReads = Arrays.copyOf(ackReads, 2 * acks);
+				}
+				ackReads[acks++] = readTime;
+			}
+
+			if (output.remaining() < packet.length) {
+				ByteBuffer bigger = ByteBuffer.allocateDirect(2 * (output.position() + packet.length));
+				output.flip();
+				bigger.put(output);
+				output = bigger;
+			}
+			output.put(packet);
+
+			// log message
+			FrameLog.out(packet, 0, packet.length);
+		}
+
+		/**
+		 * Write as much as possible of the queued responses, wait for OP_WRITE for the rest.
+		 */
+		void flush() throws IOException {
+			if (output.position() == 0) {
+				return;
+			}
+
+			output.flip();
+			channel.write(output);
+			output.compact();
+
+			if (output.position() > 0) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			} else {
+				key.interestOps(SelectionKey.OP_READ);
+
+				// all the acks are on the socket
+				long now = System.nanoTime();
+				for (int i = 0; i < acks; i++) {
+					session.metrics().ack(now - ackReads[i]);
+				}
+				acks = 0;
+			}
+		}
+
+		/**
+		 * End the session.
+		 */
+		void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+
+			key.cancel();
+			closeQuietly(channel);
+
+			// send weight list and status disconnected (also after a failure of the session)
+			try {
+				session.close();
+			} catch (RuntimeException e) {
+				Logger.e(TAG, "close() of session failed", e);
+			}
+			try {
+				listener.onDisonnect();
+			} catch (RuntimeException e) {
+				Logger.e(TAG, "onDisonnect() failed", e);
+			}
+		}
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			Logger.e(TAG, "close() of channel failed", e);
+		}
+	}
+
+}
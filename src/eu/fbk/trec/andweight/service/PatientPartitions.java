@@ -0,0 +1,208 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.service;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import eu.fbk.trec.andweight.model.AndWeight;
+import eu.fbk.trec.andweight.utils.Logger;
+
+/**
+ * Processing pipeline of the measurements, partitioned by patient.
+ * 
+ * Every patient number is mapped to one of a fixed number of partitions; each partition has its own queue (and lock)
+ * and its own consumer thread, which hands the measurements to the {@link Consumer}s in order. So the measurements of
+ * a patient are processed in the order they were received, while different patients are processed in parallel and the
+ * producers (the sessions) contend only on the queue of the partition they submit to.
+ * 
+ * The queues can be bounded (see {@link HandoffQueue}): a slow consumer then throttles, spills or drops according to
+ * the {@link HandoffQueue.Policy}, instead of stalling the reads of the sessions or filling the memory.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class PatientPartitions implements Closeable {
+	private static final String TAG = PatientPartitions.class.getSimpleName();
+
+	// maximum number of measurements handed to the consumers at once
+	private static final int DRAIN_BATCH = 64;
+
+	/**
+	 * Downstream processing of the measurements (e.g. index, stats, upload).
+	 * 
+	 * A consumer is called by the threads of all the partitions, but never concurrently for the same patient.
+	 */
+	public interface Consumer {
+
+		public void consume(int partition, AndWeight weight);
+
+	}
+
+	private final Partition[] partitions;
+	private final Consumer[] consumers;
+	private volatile boolean closed;
+
+	/**
+	 * Create a pipeline with one partition per processor.
+	 */
+	public PatientPartitions(Consumer... consumers) {
+		this(Runtime.getRuntime().availableProcessors(), consumers);
+	}
+
+	/**
+	 * Create a pipeline with unbounded queues.
+	 * 
+	 * @param partitions
+	 *            Number of partitions (and consumer threads).
+	 * @param consumers
+	 *            Consumers of the measurements, called in this order.
+	 */
+	public PatientPartitions(int partitions, Consumer... consumers) {
+		this(partitions, Integer.MAX_VALUE, HandoffQueue.Policy.BLOCK, null, consumers);
+	}
+
+	/**
+	 * Create a pipeline with bounded queues.
+	 * 
+	 * @param partitions
+	 *            Number of partitions (and consumer threads).
+	 * @param capacity
+	 *            Maximum number of measurements in memory of every partition.
+	 * @param policy
+	 *            What to do when the queue of a partition is full.
+	 * @param spillDirectory
+	 *            Directory of the spill files (required by the SPILL policy).
+	 * @param consumers
+	 *            Consumers of the measurements, called in this order.
+	 */
+	public PatientPartitions(int partitions, int capacity, HandoffQueue.Policy policy, File spillDirectory,
+			Consumer... consumers) {
+		if (partitions < 1) {
+			throw new RuntimeException("partitions must be positive!");
+		}
+		if (policy == HandoffQueue.Policy.SPILL && spillDirectory == null) {
+			throw new RuntimeException("The SPILL policy needs a directory!");
+		}
+		if (spillDirectory != null && !spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+			throw new RuntimeException("Cannot create " + spillDirectory);
+		}
+		this.consumers = consumers.clone();
+		this.partitions = new Partition[partitions];
+
+		for (int i = 0; i < partitions; i++) {
+			File spill = spillDirectory == null ? null : new File(spillDirectory, "partition-" + i + ".spill");
+			this.partitions[i] = new Partition(i, new HandoffQueue(capacity, policy, spill,
+					HandoffQueue.DEFAULT_MAX_BLOCK));
+			this.partitions[i].start();
+		}
+	}
+
+	/**
+	 * Number of partitions.
+	 */
+	public int size() {
+		return partitions.length;
+	}
+
+	/**
+	 * Partition of a patient number (the weights without patient number go to the partition 0).
+	 */
+	public int partitionOf(int patient) {
+		return patient <= 0 ? 0 : patient % partitions.length;
+	}
+
+	/**
+	 * Queue a measurement in the partition of its patient (with a bounded queue, this can block the caller).
+	 * 
+	 * @return False if the pipeline is closed (the measurement is not processed).
+	 */
+	public boolean submit(AndWeight weight) {
+		if (closed) {
+			return false;
+		}
+		return partitions[partitionOf(weight.getPatient())].queue.offer(weight);
+	}
+
+	/**
+	 * Process the queued measurements and stop the consumer threads.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		for (Partition p : partitions) {
+			p.queue.close();
+		}
+	}
+
+	/**
+	 * Wait for the consumer threads to end (after {@link #close()}).
+	 */
+	public void join() throws InterruptedException {
+		for (Partition p : partitions) {
+			p.join();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(TAG);
+		for (Partition p : partitions) {
+			sb.append('\n').append(p.index).append(": ").append(p.queue);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A partition: queue and consumer thread.
+	 */
+	private class Partition extends Thread {
+		private final int index;
+		private final HandoffQueue queue;
+
+		Partition(int index, HandoffQueue queue) {
+			super(TAG + "-" + index);
+			this.index = index;
+			this.queue = queue;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			List<AndWeight> batch = new ArrayList<>(DRAIN_BATCH);
+			try {
+				while (queue.take(batch, DRAIN_BATCH) > 0) {
+					for (AndWeight weight : batch) {
+						consume(weight);
+					}
+					batch.clear();
+				}
+			} catch (InterruptedException e) {
+				Logger.v(TAG, "interrupted...");
+			}
+		}
+
+		private void consume(AndWeight weight) {
+			for (Consumer c : consumers) {
+				try {
+					c.consume(index, weight);
+				} catch (RuntimeException e) {
+					Logger.e(TAG, "consumer failed", e);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import eu.fbk.trec.andweight.utils.Logger;
+
+/**
+ * Responses to the patient info requests (PWRQPI,XX) of the weight scales, by patient number (00 - 99).
+ * 
+ * The responses are encoded by the application (their content depends on the configuration of the scales) and loaded
+ * with {@link #put(int, byte[])}, from a directory with {@link #load(File)} or from the configuration with
+ * {@link #load(String[])}; a request is then answered with a single array look-up, so the scale does not wait until it
+ * gives up (PWCAPI) before sending the measurements. A request for a patient without response is not answered, as
+ * before: until the responses are provided, the table changes nothing.
+ * 
+ * This class is thread safe: the table can be updated while the sessions are running.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class PatientTable {
+	private static final String TAG = PatientTable.class.getSimpleName();
+
+	/**
+	 * Number of patient numbers (2 digits).
+	 */
+	public static final int SIZE = 100;
+
+	// every packet sent to the weight scale starts with P W (see OutPacket)
+	private static final byte[] PREFIX = { 0x50, 0x57 };
+
+	private static final PatientTable GLOBAL = new PatientTable();
+
+	/**
+	 * Table used by the sessions.
+	 */
+	public static PatientTable global() {
+		return GLOBAL;
+	}
+
+	private final AtomicReferenceArray<byte[]> responses = new AtomicReferenceArray<>(SIZE);
+
+	/**
+	 * Set the response to the requests of a patient.
+	 * 
+	 * @param patient
+	 *            Patient number (0 - 99).
+	 * @param response
+	 *            Complete packet sent to the weight scale (copied), or null to not answer; it must start with P W.
+	 */
+	public void put(int patient, byte[] response) {
+		check(patient);
+		if (response != null && (response.length <= PREFIX.length || response[0] != PREFIX[0]
+				|| response[1] != PREFIX[1])) {
+			throw new RuntimeException("Invalid response for patient " + patient + ": it must start with PW");
+		}
+		responses.set(patient, response == null ? null : Arrays.copyOf(response, response.length));
+	}
+
+	/**
+	 * Load the responses from a directory: the file named with the patient number (00 - 99) contains the complete
+	 * packet for the patient. The patients without a file (or with an invalid one) keep their response.
+	 * 
+	 * @return Number of responses loaded.
+	 */
+	public int load(File directory) {
+		int n = 0;
+		for (int patient = 0; patient < SIZE; patient++) {
+			File file = new File(directory, String.format(Locale.US, "%02d", patient));
+			if (!file.isFile()) {
+				continue;
+			}
+
+			try {
+				put(patient, read(file));
+				n++;
+			} catch (IOException e) {
+				Logger.e(TAG, "cannot read " + file, e);
+			} catch (RuntimeException e) {
+				Logger.w(TAG, "response ignored: " + file, e);
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Response to the requests of a patient.
+	 * 
+	 * @return The packet (not to be modified), or null if the requests of this patient are not answered.
+	 */
+	public byte[] get(int patient) {
+		check(patient);
+		return responses.get(patient);
+	}
+
+	/**
+	 * Remove the response of a patient.
+	 */
+	public void remove(int patient) {
+		put(patient, null);
+	}
+
+	/**
+	 * Remove all the responses.
+	 */
+	public void clear() {
+		for (int i = 0; i < SIZE; i++) {
+			responses.set(i, null);
+		}
+	}
+
+	/**
+	 * Number of patients with a response.
+	 */
+	public int size() {
+		int n = 0;
+		for (int i = 0; i < SIZE; i++) {
+			if (responses.get(i) != null) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Load the responses from the configuration: every entry is NN=HEX, with the patient number (00 - 99) and the
+	 * complete packet in hexadecimal (the spaces are ignored), e.g. "05=50 57 ...". The invalid entries are ignored.
+	 * 
+	 * @return Number of responses loaded.
+	 */
+	public int load(String[] entries) {
+		int n = 0;
+		for (String entry : entries) {
+			try {
+				int separator = entry.indexOf('=');
+				if (separator < 0) {
+					throw new RuntimeException("NN=HEX expected");
+				}
+				put(Integer.parseInt(entry.substring(0, separator).trim()), parseHex(entry.substring(separator + 1)));
+				n++;
+			} catch (RuntimeException e) {
+				Logger.w(TAG, "response ignored: " + entry, e);
+			}
+		}
+		return n;
+	}
+
+	private static byte[] parseHex(String hex) {
+		String digits = hex.replace(" ", "");
+		if (digits.length() % 2 != 0) {
+			throw new RuntimeException("Odd number of hex digits");
+		}
+		byte[] data = new byte[digits.length() / 2];
+		for (int i = 0; i < data.length; i++) {
+			int high = Character.digit(digits.charAt(2 * i), 16);
+			int low = Character.digit(digits.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0) {
+				throw new RuntimeException("Invalid hex digit");
+			}
+			data[i] = (byte) (high << 4 | low);
+		}
+		return data;
+	}
+
+	private static byte[] read(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			byte[] data = new byte[(int) in.length()];
+			in.readFully(data);
+			return data;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void check(int patient) {
+		if (patient < 0 || patient >= SIZE) {
+			throw new RuntimeException("Invalid patient number: " + patient);
+		}
+	}
+
+}
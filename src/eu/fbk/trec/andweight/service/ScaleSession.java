@@ -0,0 +1,324 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.service;
+
+import java.io.IOException;
+import java.util.Date;
+
+import eu.fbk.trec.andweight.exceptions.InvalidMeasureException;
+import eu.fbk.trec.andweight.exceptions.PacketExpection;
+import eu.fbk.trec.andweight.metrics.MetricsRegistry;
+import eu.fbk.trec.andweight.metrics.SessionMetrics;
+import eu.fbk.trec.andweight.model.AndWeight;
+import eu.fbk.trec.andweight.model.InPacket;
+import eu.fbk.trec.andweight.model.InPacketView;
+import eu.fbk.trec.andweight.model.OutPacket;
+import eu.fbk.trec.andweight.model.PacketFramer;
+import eu.fbk.trec.andweight.model.WeightDecoder;
+import eu.fbk.trec.andweight.storage.MeasurementJournal;
+import eu.fbk.trec.andweight.utils.FrameLog;
+import eu.fbk.trec.andweight.utils.Logger;
+
+/**
+ * Protocol logic of a session with a weight scale, independent from the transport.
+ * 
+ * The transport puts the received bytes in the {@link #framer()} and calls {@link #process(Writer, int)}, which decodes
+ * every complete packet, notifies the listener and writes the responses. {@link #close()} ends the session. The
+ * weights are delivered to the listener in micro-batches (see {@link WeightBatcher}).
+ * 
+ * If a {@link MeasurementJournal} is given, every weight is recorded in the journal before it is acknowledged, and
+ * marked as delivered when its batch has been sent to the listener.
+ * 
+ * The measures sent again by the weight scale (see {@link DuplicateFilter}) are acknowledged but not delivered. The
+ * blood pressure measures (of a model registered in the DecoderRegistry) are not delivered yet: they are acknowledged
+ * and reported with onError.
+ * 
+ * The patient info requests are answered from the {@link PatientTable}.
+ * 
+ * The session records its metrics (bytes, frames, acks, parse time, read to ack latency) in the global
+ * {@link MetricsRegistry}.
+ * 
+ * This class is not thread safe: a session is driven by one thread at a time.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class ScaleSession {
+	private static final String TAG = ScaleSession.class.getSimpleName();
+
+	/**
+	 * Destination of the responses to the weight scale. The write can be asynchronous (see {@link AckWriter}), but the
+	 * responses must be sent in order.
+	 */
+	public interface Writer {
+
+		/**
+		 * @param readTime
+		 *            System.nanoTime() of the read of the acknowledged frame, or -1 if the packet is not an ack: the
+		 *            writer records the read to ack latency (see {@link SessionMetrics#ack(long)}) once the ack has
+		 *            been written and flushed.
+		 */
+		public void write(byte[] packet, long readTime) throws IOException;
+
+	}
+
+	private final WeightListener listener;
+	private final MeasurementJournal journal;
+	private final PacketFramer framer = new PacketFramer();
+	private final InPacketView packet = new InPacketView();
+
+	// delivery of the weights
+	private final WeightBatcher batcher;
+
+	// instrumentation
+	private final SessionMetrics metrics = MetricsRegistry.global().openSession();
+	private long readTime;
+
+	// measures already received
+	private final DuplicateFilter duplicates = DuplicateFilter.global();
+
+	// responses to the patient info requests
+	private final PatientTable patients = PatientTable.global();
+	private String device;
+
+	public ScaleSession(WeightListener listener) {
+		this(listener, null);
+	}
+
+	/**
+	 * @param journal
+	 *            Journal of the measurements, or null.
+	 */
+	public ScaleSession(WeightListener listener, MeasurementJournal journal) {
+		if (listener == null) {
+			throw new RuntimeException("Listener cannot be null!");
+		}
+		this.listener = listener;
+		this.journal = journal;
+		this.batcher = new WeightBatcher(listener, journal);
+	}
+
+	/**
+	 * Framer which receives the bytes of this session.
+	 */
+	public PacketFramer framer() {
+		return framer;
+	}
+
+	/**
+	 * Name of the weight scale, for the logs and the metrics.
+	 */
+	public void setName(String name) {
+		metrics.setName(name);
+	}
+
+	/**
+	 * Identity of the weight scale, the same on every connection (see
+	 * {@link eu.fbk.trec.andweight.transport.ScaleConnection#getAddress()}), used to recognize the measures sent again.
+	 */
+	public void setDevice(String device) {
+		this.device = device;
+	}
+
+	/**
+	 * Metrics of this session.
+	 */
+	public SessionMetrics metrics() {
+		return metrics;
+	}
+
+	/**
+	 * Handle every complete packet in the framer.
+	 * 
+	 * @throws IOException
+	 *             If a response cannot be written.
+	 */
+	public void process(Writer writer) throws IOException {
+		process(writer, 0);
+	}
+
+	/**
+	 * Handle every complete packet in the framer, after a read.
+	 * 
+	 * @param bytes
+	 *            Number of bytes just read.
+	 * @throws IOException
+	 *             If a response cannot be written.
+	 */
+	public void process(Writer writer, int bytes) throws IOException {
+		metrics.bytesRead(bytes);
+		readTime = System.nanoTime();
+
+		while (framer.next()) {
+			packet.wrap(framer.buffer(), framer.frameOffset(), framer.frameLength());
+			handle(packet, writer);
+		}
+	}
+
+	/**
+	 * End the session: send the last weights to the listener.
+	 */
+	public void close() {
+		batcher.flush();
+		metrics.close();
+	}
+
+	/**
+	 * Handle a single packet received from the weight scale.
+	 * 
+	 * @throws IOException
+	 *             If the response cannot be written.
+	 */
+	private void handle(InPacketView packet, Writer writer) throws IOException {
+		if (FrameLog.isEnabled(Logger.DEBUG)) {
+			Logger.d(TAG, packet.toString());
+		}
+
+		// get type
+		long start = System.nanoTime();
+		InPacket.Type type = packet.getType();
+		if (type != InPacket.Type.WEIGHT) {
+			metrics.frame(type, System.nanoTime() - start);
+		}
+
+		switch (type) {
+		case REQUEST_PATIENT_INFO:
+			Logger.d(TAG, "REQUEST_PATIENT_INFO");
+			try {
+				// pre-encoded response, if the application gave one for this patient
+				byte[] response = patients.get(packet.getRequestedPatient());
+				if (response != null) {
+					writer.write(response, -1);
+				} else {
+					Logger.d(TAG, "no patient info...");
+				}
+			} catch (PacketExpection e) {
+				metrics.parseError();
+				Logger.e(TAG, "PacketExpection... -> " + e.getMessage());
+			}
+			break;
+
+		case CANNOT_WAIT_ANYMORE_FOR_PATIENT_INFO:
+			Logger.d(TAG, "CANNOT_WAIT_ANYMORE_FOR_PATIENT_INFO");
+			break;
+
+		case WEIGHT:
+			try {
+				// extract weight & date
+				int tenthsOfKg = packet.getWeightTenthsOfKg();
+				long time = packet.getMeasureTime();
+				int patient = patientNumber(packet);
+				metrics.frame(type, System.nanoTime() - start);
+
+				// measure sent again (e.g. the ack was lost): ack it, so the scale deletes it
+				if (duplicates.check(device, patient, time, tenthsOfKg)) {
+					Logger.d(TAG, "duplicate measure...");
+					metrics.duplicate();
+					writer.write(OutPacket.ACCEPTED_NO_DISCONNECT, readTime);
+					break;
+				}
+
+				// create Weight object
+				AndWeight w = new AndWeight(WeightDecoder.toKg(tenthsOfKg), new Date(time * 1000), patient);
+
+				// the scale discards the measure after the ack: record it first
+				long sequence = -1;
+				if (journal != null) {
+					sequence = record(w);
+					if (sequence < 0) {
+						// not stored, not acked: the scale sends it again
+						listener.onError();
+						break;
+					}
+				}
+
+				listener.onWeight(w);
+				batcher.add(w, sequence);
+				if (FrameLog.isEnabled(Logger.DEBUG)) {
+					Logger.d(TAG, w.toString());
+				}
+
+				// stored (or handed off, without journal): a new copy is a duplicate
+				duplicates.commit(device, patient, time, tenthsOfKg);
+
+				// write response... OK, next measure
+				writer.write(OutPacket.ACCEPTED_NO_DISCONNECT, readTime);
+
+			} catch (InvalidMeasureException e) {
+				metrics.frame(type, System.nanoTime() - start);
+				metrics.invalidMeasure();
+				Logger.e(TAG, "InvalidMeasure...");
+				listener.onInvalidMeasure();
+			} catch (PacketExpection e) {
+				metrics.frame(type, System.nanoTime() - start);
+				metrics.parseError();
+				Logger.e(TAG, "PacketExpection... -> " + e.getMessage());
+				listener.onError();
+			}
+
+			break;
+
+		case BLOOD_PRESSURE:
+			// there is no delivery of the blood pressure to the listener yet: without an ack the device would only
+			// time out, so report it as an error and ack it (the values are decoded only to be logged)
+			metrics.frame(type, System.nanoTime() - start);
+			if (FrameLog.isEnabled(Logger.DEBUG)) {
+				try {
+					Logger.d(TAG, "BLOOD_PRESSURE " + packet.getSystolic() + "/" + packet.getDiastolic()
+							+ " mmHg, pulse " + packet.getPulse());
+				} catch (PacketExpection e) {
+					metrics.parseError();
+					Logger.e(TAG, "PacketExpection... -> " + e.getMessage());
+				}
+			}
+			Logger.w(TAG, "blood pressure measure not supported: acknowledged, not delivered");
+			listener.onError();
+			writer.write(OutPacket.ACCEPTED_NO_DISCONNECT, readTime);
+			break;
+
+		case DATA_NOT_WEIGHT:
+			Logger.d(TAG, "DATA_NOT_WEIGHT");
+			listener.onError();
+			break;
+
+		case UNKNOWN:
+		default:
+			Logger.d(TAG, "UNKNOWN");
+			listener.onError();
+			break;
+		}
+	}
+
+	/**
+	 * Patient number of a weight packet, or {@link AndWeight#NO_PATIENT}.
+	 */
+	private static int patientNumber(InPacketView packet) {
+		try {
+			return packet.getPatientNumber();
+		} catch (PacketExpection e) {
+			return AndWeight.NO_PATIENT;
+		}
+	}
+
+	/**
+	 * Append a weight to the journal.
+	 * 
+	 * @return The sequence number of the record, or -1 if the weight cannot be recorded (then it must not be
+	 *         acknowledged).
+	 */
+	private long record(AndWeight weight) {
+		try {
+			return journal.append(weight);
+		} catch (IOException e) {
+			Logger.e(TAG, "cannot record the measure...", e);
+			return -1;
+		}
+	}
+
+}
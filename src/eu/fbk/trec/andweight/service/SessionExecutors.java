@@ -0,0 +1,76 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.service;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import eu.fbk.trec.andweight.utils.Logger;
+
+/**
+ * Executors to run the sessions ({@link ConnectionTask}) with the weight scales.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public final class SessionExecutors {
+	private static final String TAG = SessionExecutors.class.getSimpleName();
+
+	private SessionExecutors() {
+	}
+
+	/**
+	 * A new platform thread for every session; the thread is communicated to the listener with
+	 * {@link WeightListener#onNewThread(Thread)}, as for {@link ConnectionThread}.
+	 */
+	public static Executor threadPerSession(final WeightListener listener) {
+		return new Executor() {
+			@Override
+			public void execute(Runnable task) {
+				Thread thread = new Thread(task, ConnectionThread.class.getSimpleName());
+				listener.onNewThread(thread);
+				thread.start();
+			}
+		};
+	}
+
+	/**
+	 * A fixed pool of platform threads.
+	 */
+	public static ExecutorService pool(int threads) {
+		return Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * A new virtual thread for every session (Java 21 or later), so mostly idle sessions do not hold a platform thread
+	 * each.
+	 * 
+	 * @return The executor, or null if virtual threads are not available (e.g. on Android).
+	 */
+	public static ExecutorService virtualThreadPerSession() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			Logger.v(TAG, "virtual threads not available");
+			return null;
+		}
+	}
+
+	/**
+	 * Virtual threads if available, otherwise a new platform thread for every session.
+	 */
+	public static Executor lightweight(WeightListener listener) {
+		Executor executor = virtualThreadPerSession();
+		return executor != null ? executor : threadPerSession(listener);
+	}
+
+}
@@ -0,0 +1,253 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.fbk.trec.andweight.model.AndWeight;
+import eu.fbk.trec.andweight.storage.MeasurementJournal;
+
+/**
+ * Deliver the weights of a session to the listener in micro-batches, with {@link WeightListener#onWeightList(List)}.
+ * 
+ * A batch is delivered when it has maxCount weights or when its first weight is maxDelay milliseconds old, whatever
+ * comes first, and at the end of the session. So the first weight is visible after at most maxDelay, and a batch (and
+ * the Intent which carries it) never has more than maxCount weights. Empty batches are not delivered.
+ * 
+ * The time limit is enforced by a shared scheduler thread, so a batch is delivered even if the weight scale stops
+ * sending. The scheduler only hands the timed batches to a pool of delivery threads: a slow listener delays its own
+ * session, not the time limits of the others. The weights of a delivered batch are marked as delivered in the
+ * journal, if any, when the listener returns; an {@link AsyncWeightListener} receives their sequence numbers instead,
+ * and marks them once really delivered.
+ * 
+ * This class is thread safe. The listener is called without holding the lock of the batcher, one batch at a time and
+ * in order.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class WeightBatcher {
+
+	// default limits of a batch
+	public static final int DEFAULT_MAX_COUNT = 50;
+	public static final long DEFAULT_MAX_DELAY = 200;
+
+	// idle time of a delivery thread before it ends (s)
+	private static final long KEEP_ALIVE = 60;
+
+	// scheduler of the time limits and threads of the timed deliveries, shared by all the sessions
+	private static ScheduledExecutorService scheduler;
+	private static Executor deliveries;
+
+	private final WeightListener listener;
+	private final MeasurementJournal journal;
+	private final int maxCount;
+	private final long maxDelay;
+
+	// current batch (guarded by this)
+	private List<AndWeight> batch;
+	private long[] sequences;
+	private ScheduledFuture<?> timeout;
+
+	// batches taken, in order, waiting for the listener (guarded by this)
+	private final Queue<Batch> pending = new ArrayDeque<>();
+
+	// held while calling the listener (one batch at a time)
+	private final Object deliveryLock = new Object();
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	// the scheduler thread does not call the listener
+	private final Runnable timeoutTask = new Runnable() {
+		@Override
+		public void run() {
+			deliveries().execute(flushTask);
+		}
+	};
+
+	public WeightBatcher(WeightListener listener, MeasurementJournal journal) {
+		this(listener, journal, DEFAULT_MAX_COUNT, DEFAULT_MAX_DELAY);
+	}
+
+	/**
+	 * @param listener
+	 *            Receives the batches.
+	 * @param journal
+	 *            Journal of the weights, or null.
+	 * @param maxCount
+	 *            Maximum number of weights of a batch.
+	 * @param maxDelay
+	 *            Maximum time (milliseconds) a weight waits in the batch.
+	 */
+	public WeightBatcher(WeightListener listener, MeasurementJournal journal, int maxCount, long maxDelay) {
+		if (listener == null) {
+			throw new RuntimeException("Listener cannot be null!");
+		}
+		if (maxCount < 1 || maxDelay < 0) {
+			throw new RuntimeException("maxCount must be positive and maxDelay not negative!");
+		}
+		this.listener = listener;
+		this.journal = journal;
+		this.maxCount = maxCount;
+		this.maxDelay = maxDelay;
+		this.batch = new ArrayList<>(maxCount);
+		this.sequences = new long[maxCount];
+	}
+
+	/**
+	 * Add a weight to the current batch.
+	 * 
+	 * @param sequence
+	 *            Sequence number of the weight in the journal (ignored without journal).
+	 */
+	public void add(AndWeight weight, long sequence) {
+		synchronized (this) {
+			sequences[batch.size()] = journal == null ? -1 : sequence;
+			batch.add(weight);
+
+			if (batch.size() < maxCount) {
+				if (batch.size() == 1) {
+					timeout = scheduler().schedule(timeoutTask, maxDelay, TimeUnit.MILLISECONDS);
+				}
+				return;
+			}
+			take();
+		}
+		deliver();
+	}
+
+	/**
+	 * Deliver the current batch now (nothing if empty).
+	 */
+	public void flush() {
+		synchronized (this) {
+			take();
+		}
+		deliver();
+	}
+
+	/**
+	 * Move the current batch to the pending ones (holding the lock).
+	 */
+	private void take() {
+		if (timeout != null) {
+			timeout.cancel(false);
+			timeout = null;
+		}
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		// the listener keeps the list: start a new one
+		pending.add(new Batch(batch, sequences));
+		batch = new ArrayList<>(maxCount);
+		sequences = new long[maxCount];
+	}
+
+	/**
+	 * Deliver the pending batches, in order (without the lock of the batcher).
+	 */
+	private void deliver() {
+		synchronized (deliveryLock) {
+			while (true) {
+				Batch b;
+				synchronized (this) {
+					b = pending.poll();
+				}
+				if (b == null) {
+					return;
+				}
+				deliver(b);
+			}
+		}
+	}
+
+	private void deliver(Batch b) {
+		int size = b.weights.size();
+		if (listener instanceof AsyncWeightListener) {
+			((AsyncWeightListener) listener).onWeightList(b.weights, Arrays.copyOf(b.sequences, size));
+			return;
+		}
+
+		listener.onWeightList(b.weights);
+
+		if (journal != null) {
+			for (int i = 0; i < size; i++) {
+				journal.delivered(b.sequences[i]);
+			}
+		}
+	}
+
+	/**
+	 * Threads of the timed deliveries, shared by the sessions.
+	 */
+	private static synchronized Executor deliveries() {
+		if (deliveries == null) {
+			deliveries = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, WeightBatcher.class.getSimpleName() + "-"
+									+ count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return deliveries;
+	}
+
+	private static synchronized ScheduledExecutorService scheduler() {
+		if (scheduler == null) {
+			scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, WeightBatcher.class.getSimpleName());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return scheduler;
+	}
+
+	/**
+	 * A batch taken from the batcher: the weights and their sequence numbers (-1 without journal).
+	 */
+	private static final class Batch {
+		final List<AndWeight> weights;
+		final long[] sequences;
+
+		Batch(List<AndWeight> weights, long[] sequences) {
+			this.weights = weights;
+			this.sequences = sequences;
+		}
+	}
+
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.simulator;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Locale;
+
+/**
+ * Build the packets sent by the A&amp;D UC-351PBT-Ci weight scale, exactly as recognized by
+ * {@link eu.fbk.trec.andweight.model.InPacketView}.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public final class FrameBuilder {
+
+	// useful constants
+	private static final int HEADER_LENGHT = 60;
+	private static final int WEIGHT_LENGHT = 21;
+
+	// offsets
+	private static final int MEASURE_DATE = 9;
+	private static final int TRASMISSION_DATE = 16;
+
+	// offset of the measure type in a weight packet
+	static final int WEIGHT_TYPE = HEADER_LENGHT + 1;
+
+	// kg per lb
+	private static final double KG_PER_LB = 0.453592;
+
+	private FrameBuilder() {
+	}
+
+	/**
+	 * The weight scale cannot wait anymore for the patient info: P W C A P I.
+	 */
+	public static byte[] cannotWait() {
+		return ascii("PWCAPI");
+	}
+
+	/**
+	 * Request of patient info: P W R Q P I , X X.
+	 */
+	public static byte[] requestPatientInfo(int patient) {
+		return ascii(String.format(Locale.US, "PWRQPI,%02d", patient % 100));
+	}
+
+	/**
+	 * Placeholder for the response to a patient info request: P W P I , X X (the simulator does not parse the
+	 * response, the real content is encoded by the application).
+	 */
+	public static byte[] patientInfo(int patient) {
+		return ascii(String.format(Locale.US, "PWPI,%02d", patient % 100));
+	}
+
+	/**
+	 * A weight packet.
+	 * 
+	 * @param tenthsOfKg
+	 *            Weight in kg / 10.
+	 * @param pounds
+	 *            True to send the weight in lb.
+	 * @param type
+	 *            Measure type: 'T' or 'L' (valid), 'E' (invalid).
+	 * @param patient
+	 *            Patient number (0-99).
+	 * @param measure
+	 *            Measure date.
+	 * @param trasmission
+	 *            Transmission date.
+	 */
+	public static byte[] weight(int tenthsOfKg, boolean pounds, char type, int patient, Calendar measure,
+			Calendar trasmission) {
+		byte[] packet = new byte[HEADER_LENGHT + WEIGHT_LENGHT];
+
+		// header: type 02 00, body length (4 bytes, little endian), model UC-351PBT-Ci (42 01)
+		packet[0] = 0x02;
+		packet[1] = 0x00;
+		packet[2] = WEIGHT_LENGHT;
+		packet[6] = 0x42;
+		packet[7] = 0x01;
+		date(packet, MEASURE_DATE, measure);
+		date(packet, TRASMISSION_DATE, trasmission);
+
+		// weight section: S T , value(7) unit(2) ... patient(2) CR LF
+		byte[] body = new byte[WEIGHT_LENGHT];
+		Arrays.fill(body, (byte) ' ');
+		body[0] = 'S';
+		body[1] = (byte) type;
+		body[2] = ',';
+		double value = pounds ? tenthsOfKg / 10.0 / KG_PER_LB : tenthsOfKg / 10.0;
+		put(body, 3, String.format(Locale.US, "%7.1f", value));
+		put(body, 10, pounds ? "lb" : "kg");
+		put(body, 17, String.format(Locale.US, "%02d", patient % 100));
+		body[19] = 0x0D;
+		body[20] = 0x0A;
+		System.arraycopy(body, 0, packet, HEADER_LENGHT, WEIGHT_LENGHT);
+
+		return packet;
+	}
+
+	/**
+	 * Bytes which are not a valid packet (never start with 0x02 or 'P').
+	 */
+	public static byte[] garbage(int length) {
+		byte[] bb = new byte[length];
+		Arrays.fill(bb, (byte) '?');
+		return bb;
+	}
+
+	/**
+	 * Write a date as the weight scale does (year as 2 bytes little endian, then month as in Calendar, day, hour,
+	 * minute and second).
+	 */
+	private static void date(byte[] packet, int offset, Calendar c) {
+		int year = c.get(Calendar.YEAR);
+		packet[offset] = (byte) year;
+		packet[offset + 1] = (byte) (year >> 8);
+		packet[offset + 2] = (byte) c.get(Calendar.MONTH);
+		packet[offset + 3] = (byte) c.get(Calendar.DAY_OF_MONTH);
+		packet[offset + 4] = (byte) c.get(Calendar.HOUR_OF_DAY);
+		packet[offset + 5] = (byte) c.get(Calendar.MINUTE);
+		packet[offset + 6] = (byte) c.get(Calendar.SECOND);
+	}
+
+	private static void put(byte[] bb, int offset, String s) {
+		byte[] ascii = ascii(s);
+		System.arraycopy(ascii, 0, bb, offset, ascii.length);
+	}
+
+	private static byte[] ascii(String s) {
+		byte[] bb = new byte[s.length()];
+		for (int i = 0; i < bb.length; i++) {
+			bb[i] = (byte) s.charAt(i);
+		}
+		return bb;
+	}
+
+}
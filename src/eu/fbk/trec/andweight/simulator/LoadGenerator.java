@@ -0,0 +1,276 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.simulator;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+
+import eu.fbk.trec.andweight.metrics.MetricsRegistry;
+import eu.fbk.trec.andweight.model.AndWeight;
+import eu.fbk.trec.andweight.service.ConnectionTask;
+import eu.fbk.trec.andweight.service.PatientTable;
+import eu.fbk.trec.andweight.service.WeightListener;
+
+/**
+ * Load generator: many simulated weight scales connect repeatedly to a gateway and drain their backlog, the throughput
+ * (sessions/s and measurements/s) is printed every second and at the end.
+ * 
+ * The gateway is either in process (each session is a {@link ConnectionTask} over a {@link LoopbackConnection}) or a
+ * TCP gateway (e.g. {@link eu.fbk.trec.andweight.service.NioGateway}). With --patient-table, the in process gateway
+ * answers the patient info requests with placeholder responses (see {@link PatientTable}), which the simulated scales
+ * accept without parsing: on a device the gain needs the real responses, which the app does not provide by default.
+ * 
+ * It runs on a desktop JVM, with the compiled classes only on the class path (android.jar is not needed at run time):
+ * the sessions log through {@link eu.fbk.trec.andweight.utils.Logger} to java.util.logging, which is off unless
+ * enabled with --log (e.g. INFO), so the logging does not slow down the sessions being measured.
+ * 
+ * <pre>
+ * java -cp classes eu.fbk.trec.andweight.simulator.LoadGenerator
+ *               [--scales 10] [--seconds 10] [--backlog 10] [--interval 0] [--fragment 0] [--coalesce]
+ *               [--invalid 0] [--pounds 0] [--patient-info 0] [--cannot-wait 0] [--garbage 0] [--tcp host:port]
+ *               [--patient-table] [--log OFF]
+ * </pre>
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class LoadGenerator {
+
+	private final SimulatorConfig config;
+	private final int scales;
+	private final long seconds;
+	private final String host;
+	private final int port;
+
+	private final SimulatorStats stats = new SimulatorStats();
+	private final CountingListener listener = new CountingListener();
+
+	public LoadGenerator(SimulatorConfig config, int scales, long seconds, String host, int port) {
+		this.config = config;
+		this.scales = scales;
+		this.seconds = seconds;
+		this.host = host;
+		this.port = port;
+	}
+
+	public static void main(String[] args) throws Exception {
+		SimulatorConfig config = new SimulatorConfig();
+		int scales = 10;
+		long seconds = 10;
+		String host = null;
+		int port = 0;
+		Level log = Level.OFF;
+
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "--scales":
+				scales = Integer.parseInt(args[++i]);
+				break;
+			case "--seconds":
+				seconds = Long.parseLong(args[++i]);
+				break;
+			case "--backlog":
+				config.setBacklog(Integer.parseInt(args[++i]));
+				break;
+			case "--interval":
+				config.setInterval(Long.parseLong(args[++i]));
+				break;
+			case "--fragment":
+				config.setMaxFragment(Integer.parseInt(args[++i]));
+				break;
+			case "--coalesce":
+				config.setCoalesce(true);
+				break;
+			case "--invalid":
+				config.setInvalidRate(Double.parseDouble(args[++i]));
+				break;
+			case "--pounds":
+				config.setPoundsRate(Double.parseDouble(args[++i]));
+				break;
+			case "--patient-info":
+				config.setPatientInfoRate(Double.parseDouble(args[++i]));
+				break;
+			case "--cannot-wait":
+				config.setCannotWaitRate(Double.parseDouble(args[++i]));
+				break;
+			case "--garbage":
+				config.setGarbageRate(Double.parseDouble(args[++i]));
+				break;
+			case "--patients":
+				config.setPatients(Integer.parseInt(args[++i]));
+				break;
+			case "--patient-table":
+				for (int p = 0; p < PatientTable.SIZE; p++) {
+					PatientTable.global().put(p, FrameBuilder.patientInfo(p));
+				}
+				break;
+			case "--log":
+				log = Level.parse(args[++i]);
+				break;
+			case "--tcp":
+				String[] address = args[++i].split(":");
+				host = address[0];
+				port = Integer.parseInt(address[1]);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option: " + args[i]);
+			}
+		}
+
+		java.util.logging.Logger root = java.util.logging.Logger.getLogger("");
+		root.setLevel(log);
+		for (Handler handler : root.getHandlers()) {
+			handler.setLevel(log);
+		}
+
+		new LoadGenerator(config, scales, seconds, host, port).run();
+	}
+
+	/**
+	 * Run the load and print the results.
+	 */
+	public SimulatorStats run() throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + seconds * 1000;
+		ExecutorService simulators = Executors.newFixedThreadPool(scales);
+		final ExecutorService gateway = Executors.newCachedThreadPool();
+
+		for (int i = 0; i < scales; i++) {
+			final int id = i;
+			simulators.execute(new Runnable() {
+				@Override
+				public void run() {
+					ScaleSimulator simulator = new ScaleSimulator(config, stats, id);
+					while (System.currentTimeMillis() < deadline) {
+						if (simulator.getBacklogSize() == 0) {
+							simulator.measure(config.getBacklog());
+						}
+						try {
+							if (host == null) {
+								loopbackSession(simulator, gateway, id);
+							} else {
+								tcpSession(simulator);
+							}
+						} catch (IOException e) {
+							System.err.println("scale " + id + ": " + e);
+						}
+					}
+				}
+			});
+		}
+		simulators.shutdown();
+
+		// print the throughput every second
+		long start = System.nanoTime();
+		long lastSessions = 0;
+		long lastAccepted = 0;
+		while (!simulators.awaitTermination(1, TimeUnit.SECONDS)) {
+			long sessions = stats.getSessions();
+			long accepted = stats.getAccepted();
+			System.out.println(String.format(Locale.US, "%8d sessions/s %10d measurements/s", sessions - lastSessions,
+					accepted - lastAccepted));
+			lastSessions = sessions;
+			lastAccepted = accepted;
+		}
+
+		gateway.shutdown();
+		gateway.awaitTermination(10, TimeUnit.SECONDS);
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		System.out.println(stats);
+		if (host == null) {
+			System.out.println(listener);
+			System.out.println(MetricsRegistry.global().snapshot());
+		}
+		System.out.println(String.format(Locale.US, "TOTAL %.1f sessions/s %.1f measurements/s",
+				stats.getSessions() / elapsed, stats.getAccepted() / elapsed));
+
+		return stats;
+	}
+
+	private void loopbackSession(ScaleSimulator simulator, ExecutorService gateway, int id) throws IOException {
+		LoopbackConnection connection = new LoopbackConnection("scale-" + id);
+		gateway.execute(new ConnectionTask(connection, listener));
+		try {
+			simulator.runSession(connection.getScaleInput(), connection.getScaleOutput());
+		} finally {
+			connection.getScaleOutput().close();
+		}
+	}
+
+	private void tcpSession(ScaleSimulator simulator) throws IOException {
+		Socket socket = new Socket(host, port);
+		try {
+			socket.setTcpNoDelay(true);
+			simulator.runSession(socket.getInputStream(), socket.getOutputStream());
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Listener of the in process gateway, only counts the events.
+	 */
+	private static class CountingListener implements WeightListener {
+		private final AtomicLong weights = new AtomicLong();
+		private final AtomicLong invalid = new AtomicLong();
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicLong disconnections = new AtomicLong();
+
+		@Override
+		public void onNewThread(Thread thread) {
+		}
+
+		@Override
+		public void onConnect() {
+		}
+
+		@Override
+		public void onDisonnect() {
+			disconnections.incrementAndGet();
+		}
+
+		@Override
+		public void onError() {
+			errors.incrementAndGet();
+		}
+
+		@Override
+		public void onMeasuring() {
+		}
+
+		@Override
+		public void onWeight(AndWeight weight) {
+			weights.incrementAndGet();
+		}
+
+		@Override
+		public void onWeightList(List<AndWeight> weights) {
+		}
+
+		@Override
+		public void onInvalidMeasure() {
+			invalid.incrementAndGet();
+		}
+
+		@Override
+		public String toString() {
+			return "Gateway [weights=" + weights + ", invalid=" + invalid + ", errors=" + errors + ", disconnections="
+					+ disconnections + "]";
+		}
+	}
+
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.simulator;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import eu.fbk.trec.andweight.transport.ScaleConnection;
+
+/**
+ * In-memory connection between a {@link ScaleSimulator} and the gateway: the gateway uses this object as a
+ * ScaleConnection, the simulator uses {@link #getScaleInput()} and {@link #getScaleOutput()}.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class LoopbackConnection implements ScaleConnection {
+
+	// pipe capacity
+	private static final int CAPACITY = 4096;
+
+	private final String name;
+
+	// scale -> gateway
+	private final Pipe up = new Pipe(CAPACITY);
+
+	// gateway -> scale
+	private final Pipe down = new Pipe(CAPACITY);
+
+	public LoopbackConnection(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return up.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return down.getOutputStream();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return !down.isClosed();
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String getAddress() {
+		return name;
+	}
+
+	@Override
+	public void close() {
+		up.close();
+		down.close();
+	}
+
+	/**
+	 * Stream of the responses, read by the simulator.
+	 */
+	public InputStream getScaleInput() {
+		return down.getInputStream();
+	}
+
+	/**
+	 * Stream of the packets, written by the simulator.
+	 */
+	public OutputStream getScaleOutput() {
+		return up.getOutputStream();
+	}
+
+}
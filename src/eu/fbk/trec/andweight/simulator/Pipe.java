@@ -0,0 +1,150 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.simulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * In-memory byte pipe between two threads.
+ * 
+ * Unlike java.io.PipedInputStream, the pipe does not depend on the liveness of the writing thread, so it can be used
+ * with thread pools. Closing either side ends the stream: the reader gets -1 once the buffered bytes are consumed, the
+ * writer gets an IOException.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class Pipe {
+
+	private final byte[] buffer;
+	private int head;
+	private int count;
+	private boolean closed;
+
+	private final InputStream input = new InputStream() {
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return Pipe.this.read(b, off, len);
+		}
+
+		@Override
+		public int available() {
+			synchronized (Pipe.this) {
+				return count;
+			}
+		}
+
+		@Override
+		public void close() {
+			Pipe.this.close();
+		}
+	};
+
+	private final OutputStream output = new OutputStream() {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			Pipe.this.write(b, off, len);
+		}
+
+		@Override
+		public void close() {
+			Pipe.this.close();
+		}
+	};
+
+	public Pipe(int capacity) {
+		this.buffer = new byte[capacity];
+	}
+
+	public InputStream getInputStream() {
+		return input;
+	}
+
+	public OutputStream getOutputStream() {
+		return output;
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	private synchronized int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+
+		while (count == 0 && !closed) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted");
+			}
+		}
+
+		if (count == 0) {
+			return -1;
+		}
+
+		int n = Math.min(len, count);
+		for (int i = 0; i < n; i++) {
+			b[off + i] = buffer[(head + i) % buffer.length];
+		}
+		head = (head + n) % buffer.length;
+		count -= n;
+		notifyAll();
+
+		return n;
+	}
+
+	private synchronized void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			while (count == buffer.length && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted");
+				}
+			}
+
+			if (closed) {
+				throw new IOException("pipe closed");
+			}
+
+			int n = Math.min(len, buffer.length - count);
+			for (int i = 0; i < n; i++) {
+				buffer[(head + count + i) % buffer.length] = b[off + i];
+			}
+			count += n;
+			off += n;
+			len -= n;
+			notifyAll();
+		}
+	}
+
+}
@@ -0,0 +1,293 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.simulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.Random;
+
+import eu.fbk.trec.andweight.model.OutPacket;
+
+/**
+ * Simulator of an A&amp;D UC-351PBT-Ci weight scale.
+ * 
+ * The simulator keeps a backlog of stored measurements and, for every session, sends them one by one, waiting for the
+ * response of the gateway after each valid measure and reacting to it as the device does:
+ * <ul>
+ * <li>ACCEPTED_NO_DISCONNECT: the measure is deleted, the next one is sent;</li>
+ * <li>ACCEPTED: the measure is deleted, the session ends;</li>
+ * <li>ACCEPTED_DELETE_ALL: all the measures are deleted, the session ends;</li>
+ * <li>ACCEPTED_CONFIG: the measure is deleted, the session ends (configuration mode is not simulated);</li>
+ * <li>REFUSED or anything else: the measure is kept, the session ends.</li>
+ * </ul>
+ * Invalid ('E') measures are not acknowledged by the gateway, so they are deleted without waiting for a response.
+ * 
+ * This class is not thread safe: use one simulator per thread.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class ScaleSimulator {
+
+	/**
+	 * How a session ended.
+	 */
+	public enum Outcome {
+		DRAINED, ACCEPTED, ACCEPTED_CONFIG, ACCEPTED_DELETE_ALL, REFUSED, UNKNOWN_RESPONSE, CLOSED
+	}
+
+	// length of the responses of the gateway
+	private static final int RESPONSE_LENGHT = 4;
+
+	// range of the simulated weights (kg / 10)
+	private static final int MIN_WEIGHT = 300;
+	private static final int MAX_WEIGHT = 1500;
+
+	private final SimulatorConfig config;
+	private final SimulatorStats stats;
+	private final Random random;
+
+	// stored measurements, oldest first
+	private final Deque<byte[]> backlog = new ArrayDeque<>();
+
+	// time of the last stored measurement (the times of a scale never repeat)
+	private Calendar clock;
+
+	private final byte[] response = new byte[RESPONSE_LENGHT];
+
+	public ScaleSimulator(SimulatorConfig config, SimulatorStats stats, long seed) {
+		if (config == null || stats == null) {
+			throw new RuntimeException("Config and Stats cannot be null!");
+		}
+		this.config = config;
+		this.stats = stats;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Number of stored measurements.
+	 */
+	public int getBacklogSize() {
+		return backlog.size();
+	}
+
+	/**
+	 * Store n new measurements (taken one minute apart, the last one now, but always after the previous ones).
+	 */
+	public void measure(int n) {
+		Calendar now = Calendar.getInstance();
+		for (int i = n - 1; i >= 0; i--) {
+			Calendar measure = (Calendar) now.clone();
+			measure.add(Calendar.MINUTE, -i);
+			if (clock != null && !measure.after(clock)) {
+				measure = (Calendar) clock.clone();
+				measure.add(Calendar.SECOND, 1);
+			}
+			clock = measure;
+
+			int weight = MIN_WEIGHT + random.nextInt(MAX_WEIGHT - MIN_WEIGHT);
+			boolean pounds = random.nextDouble() < config.getPoundsRate();
+			char type = random.nextDouble() < config.getInvalidRate() ? 'E' : 'T';
+			int patient = random.nextInt(config.getPatients());
+
+			backlog.add(FrameBuilder.weight(weight, pounds, type, patient, measure, now));
+		}
+	}
+
+	/**
+	 * Run a session: send the stored measurements until the backlog is empty or the gateway ends the session.
+	 * 
+	 * @param input
+	 *            Responses from the gateway.
+	 * @param output
+	 *            Packets to the gateway (not closed).
+	 * @return How the session ended.
+	 * @throws IOException
+	 *             If the connection fails.
+	 */
+	public Outcome runSession(InputStream input, OutputStream output) throws IOException {
+		try {
+			return session(input, output);
+		} finally {
+			stats.sessions.incrementAndGet();
+		}
+	}
+
+	private Outcome session(InputStream input, OutputStream output) throws IOException {
+		byte[] pending = controlPackets(input, output);
+
+		while (!backlog.isEmpty()) {
+			byte[] frame = backlog.peekFirst();
+
+			// some noise on the line
+			if (random.nextDouble() < config.getGarbageRate()) {
+				send(output, FrameBuilder.garbage(1 + random.nextInt(8)));
+			}
+
+			// a control packet not sent yet goes with the first weight
+			if (pending != null) {
+				byte[] both = Arrays.copyOf(pending, pending.length + frame.length);
+				System.arraycopy(frame, 0, both, pending.length, frame.length);
+				send(output, both);
+				pending = null;
+			} else {
+				send(output, frame);
+			}
+			stats.measurements.incrementAndGet();
+
+			// invalid measures are not acknowledged
+			if (frame[FrameBuilder.WEIGHT_TYPE] == 'E') {
+				stats.invalid.incrementAndGet();
+				backlog.removeFirst();
+				pause();
+				continue;
+			}
+
+			// wait for the response
+			if (!readFully(input, response)) {
+				return Outcome.CLOSED;
+			}
+
+			if (Arrays.equals(response, OutPacket.ACCEPTED_NO_DISCONNECT)) {
+				stats.accepted.incrementAndGet();
+				backlog.removeFirst();
+			} else if (Arrays.equals(response, OutPacket.ACCEPTED)) {
+				stats.accepted.incrementAndGet();
+				backlog.removeFirst();
+				return Outcome.ACCEPTED;
+			} else if (Arrays.equals(response, OutPacket.ACCEPTED_CONFIG)) {
+				stats.accepted.incrementAndGet();
+				backlog.removeFirst();
+				return Outcome.ACCEPTED_CONFIG;
+			} else if (Arrays.equals(response, OutPacket.ACCEPTED_DELETE_ALL)) {
+				stats.accepted.incrementAndGet();
+				backlog.clear();
+				return Outcome.ACCEPTED_DELETE_ALL;
+			} else if (Arrays.equals(response, OutPacket.REFUSED)) {
+				return Outcome.REFUSED;
+			} else {
+				return Outcome.UNKNOWN_RESPONSE;
+			}
+
+			pause();
+		}
+
+		return Outcome.DRAINED;
+	}
+
+	/**
+	 * Send the control packets at the start of a session, if any.
+	 * 
+	 * @return A control packet to send together with the first weight (coalesce), or null.
+	 */
+	private byte[] controlPackets(InputStream input, OutputStream output) throws IOException {
+		byte[] control = null;
+
+		if (random.nextDouble() < config.getPatientInfoRate()) {
+			send(output, FrameBuilder.requestPatientInfo(random.nextInt(config.getPatients())));
+
+			// wait for the patient info, then give up
+			if (waitResponse(input, config.getPatientInfoTimeout())) {
+				stats.patientInfoAnswered.incrementAndGet();
+			} else {
+				stats.patientInfoTimeouts.incrementAndGet();
+				control = FrameBuilder.cannotWait();
+			}
+		} else if (random.nextDouble() < config.getCannotWaitRate()) {
+			control = FrameBuilder.cannotWait();
+		}
+
+		if (control != null && (!config.isCoalesce() || backlog.isEmpty())) {
+			send(output, control);
+			control = null;
+		}
+
+		return control;
+	}
+
+	/**
+	 * Wait up to timeout ms for a response and consume it.
+	 * 
+	 * @return True if a response arrived.
+	 */
+	private boolean waitResponse(InputStream input, long timeout) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (input.available() == 0) {
+			if (System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+			sleep(1);
+		}
+
+		// the response is complete when no more bytes arrive for a while
+		byte[] skip = new byte[256];
+		do {
+			if (input.read(skip, 0, Math.min(skip.length, input.available())) < 0) {
+				return true;
+			}
+			sleep(5);
+		} while (input.available() > 0);
+
+		return true;
+	}
+
+	/**
+	 * Write a packet, split in random fragments if configured.
+	 */
+	private void send(OutputStream output, byte[] packet) throws IOException {
+		int max = config.getMaxFragment();
+
+		if (max <= 0) {
+			output.write(packet);
+			output.flush();
+		} else {
+			int offset = 0;
+			while (offset < packet.length) {
+				int n = Math.min(packet.length - offset, 1 + random.nextInt(max));
+				output.write(packet, offset, n);
+				output.flush();
+				offset += n;
+			}
+		}
+
+		stats.bytes.addAndGet(packet.length);
+	}
+
+	private static boolean readFully(InputStream input, byte[] bb) throws IOException {
+		int n = 0;
+		while (n < bb.length) {
+			int bytes = input.read(bb, n, bb.length - n);
+			if (bytes < 0) {
+				return false;
+			}
+			n += bytes;
+		}
+		return true;
+	}
+
+	private void pause() {
+		if (config.getInterval() > 0) {
+			sleep(config.getInterval());
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
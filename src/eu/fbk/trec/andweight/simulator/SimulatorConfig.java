@@ -0,0 +1,158 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.simulator;
+
+/**
+ * Configuration of a {@link ScaleSimulator}. The setters return this object, so they can be chained.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class SimulatorConfig {
+
+	// number of stored measurements at the start
+	private int backlog = 10;
+
+	// pause between two measurements (ms, 0 = as fast as possible)
+	private long interval = 0;
+
+	// maximum size of a write (0 = a packet per write)
+	private int maxFragment = 0;
+
+	// send the control packet and the first weight in a single write
+	private boolean coalesce = false;
+
+	// probabilities
+	private double invalidRate = 0;
+	private double poundsRate = 0;
+	private double patientInfoRate = 0;
+	private double cannotWaitRate = 0;
+	private double garbageRate = 0;
+
+	// time to wait for the patient info before PWCAPI (ms)
+	private long patientInfoTimeout = 100;
+
+	// number of patients of the scale
+	private int patients = 1;
+
+	public int getBacklog() {
+		return backlog;
+	}
+
+	public SimulatorConfig setBacklog(int backlog) {
+		this.backlog = backlog;
+		return this;
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	public SimulatorConfig setInterval(long interval) {
+		this.interval = interval;
+		return this;
+	}
+
+	public int getMaxFragment() {
+		return maxFragment;
+	}
+
+	public SimulatorConfig setMaxFragment(int maxFragment) {
+		this.maxFragment = maxFragment;
+		return this;
+	}
+
+	public boolean isCoalesce() {
+		return coalesce;
+	}
+
+	public SimulatorConfig setCoalesce(boolean coalesce) {
+		this.coalesce = coalesce;
+		return this;
+	}
+
+	public double getInvalidRate() {
+		return invalidRate;
+	}
+
+	/**
+	 * Probability of an invalid ('E') measure.
+	 */
+	public SimulatorConfig setInvalidRate(double invalidRate) {
+		this.invalidRate = invalidRate;
+		return this;
+	}
+
+	public double getPoundsRate() {
+		return poundsRate;
+	}
+
+	/**
+	 * Probability of a measure in lb.
+	 */
+	public SimulatorConfig setPoundsRate(double poundsRate) {
+		this.poundsRate = poundsRate;
+		return this;
+	}
+
+	public double getPatientInfoRate() {
+		return patientInfoRate;
+	}
+
+	/**
+	 * Probability that a session starts with PWRQPI,XX.
+	 */
+	public SimulatorConfig setPatientInfoRate(double patientInfoRate) {
+		this.patientInfoRate = patientInfoRate;
+		return this;
+	}
+
+	public double getCannotWaitRate() {
+		return cannotWaitRate;
+	}
+
+	/**
+	 * Probability that a session (without patient info request) starts with PWCAPI.
+	 */
+	public SimulatorConfig setCannotWaitRate(double cannotWaitRate) {
+		this.cannotWaitRate = cannotWaitRate;
+		return this;
+	}
+
+	public double getGarbageRate() {
+		return garbageRate;
+	}
+
+	/**
+	 * Probability of some garbage bytes before a measure.
+	 */
+	public SimulatorConfig setGarbageRate(double garbageRate) {
+		this.garbageRate = garbageRate;
+		return this;
+	}
+
+	public long getPatientInfoTimeout() {
+		return patientInfoTimeout;
+	}
+
+	public SimulatorConfig setPatientInfoTimeout(long patientInfoTimeout) {
+		this.patientInfoTimeout = patientInfoTimeout;
+		return this;
+	}
+
+	public int getPatients() {
+		return patients;
+	}
+
+	public SimulatorConfig setPatients(int patients) {
+		this.patients = patients;
+		return this;
+	}
+
+}
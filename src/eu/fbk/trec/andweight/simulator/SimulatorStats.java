@@ -0,0 +1,79 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.simulator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of one or more {@link ScaleSimulator}s (thread safe, can be shared).
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class SimulatorStats {
+
+	final AtomicLong sessions = new AtomicLong();
+	final AtomicLong measurements = new AtomicLong();
+	final AtomicLong accepted = new AtomicLong();
+	final AtomicLong invalid = new AtomicLong();
+	final AtomicLong patientInfoAnswered = new AtomicLong();
+	final AtomicLong patientInfoTimeouts = new AtomicLong();
+	final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * Completed sessions.
+	 */
+	public long getSessions() {
+		return sessions.get();
+	}
+
+	/**
+	 * Weight packets sent (valid and invalid).
+	 */
+	public long getMeasurements() {
+		return measurements.get();
+	}
+
+	/**
+	 * Measurements accepted (acked) by the gateway.
+	 */
+	public long getAccepted() {
+		return accepted.get();
+	}
+
+	/**
+	 * Invalid ('E') measures sent.
+	 */
+	public long getInvalid() {
+		return invalid.get();
+	}
+
+	public long getPatientInfoAnswered() {
+		return patientInfoAnswered.get();
+	}
+
+	public long getPatientInfoTimeouts() {
+		return patientInfoTimeouts.get();
+	}
+
+	/**
+	 * Bytes sent to the gateway.
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	@Override
+	public String toString() {
+		return "SimulatorStats [sessions=" + sessions + ", measurements=" + measurements + ", accepted=" + accepted
+				+ ", invalid=" + invalid + ", patientInfoAnswered=" + patientInfoAnswered + ", patientInfoTimeouts="
+				+ patientInfoTimeouts + ", bytes=" + bytes + "]";
+	}
+
+}
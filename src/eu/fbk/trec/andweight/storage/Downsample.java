@@ -0,0 +1,139 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.storage;
+
+import java.util.Arrays;
+
+import eu.fbk.trec.andweight.model.WeightDecoder;
+
+/**
+ * Result of a downsampling query: minimum, maximum and average weight of each bucket (day or week) which contains at
+ * least one measurement, in chronological order.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class Downsample {
+
+	/**
+	 * Size of the buckets.
+	 */
+	public enum Resolution {
+		DAY(1), WEEK(7);
+
+		final int days;
+
+		private Resolution(int days) {
+			this.days = days;
+		}
+	}
+
+	private final Resolution resolution;
+	private int size;
+	private long[] starts = new long[8];
+	private int[] min = new int[8];
+	private int[] max = new int[8];
+	private int[] count = new int[8];
+	private long[] sum = new long[8];
+
+	Downsample(Resolution resolution) {
+		this.resolution = resolution;
+	}
+
+	/**
+	 * Add the aggregate of a day to the last bucket, or start a new bucket.
+	 */
+	void add(long start, int min, int max, int count, long sum) {
+		if (size > 0 && starts[size - 1] == start) {
+			int last = size - 1;
+			this.min[last] = Math.min(this.min[last], min);
+			this.max[last] = Math.max(this.max[last], max);
+			this.count[last] += count;
+			this.sum[last] += sum;
+			return;
+		}
+
+		if (size == starts.length) {
+			int length = 2 * size;
+			starts = Arrays.copyOf(starts, length);
+			this.min = Arrays.copyOf(this.min, length);
+			this.max = Arrays.copyOf(this.max, length);
+			this.count = Arrays.copyOf(this.count, length);
+			this.sum = Arrays.copyOf(this.sum, length);
+		}
+		starts[size] = start;
+		this.min[size] = min;
+		this.max[size] = max;
+		this.count[size] = count;
+		this.sum[size] = sum;
+		size++;
+	}
+
+	public Resolution getResolution() {
+		return resolution;
+	}
+
+	/**
+	 * Number of buckets.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Start of the i-th bucket (epoch seconds, local midnight).
+	 */
+	public long getStart(int i) {
+		return starts[check(i)];
+	}
+
+	/**
+	 * Minimum weight (kg / 10) of the i-th bucket.
+	 */
+	public int getMinTenthsOfKg(int i) {
+		return min[check(i)];
+	}
+
+	/**
+	 * Maximum weight (kg / 10) of the i-th bucket.
+	 */
+	public int getMaxTenthsOfKg(int i) {
+		return max[check(i)];
+	}
+
+	/**
+	 * Average weight (kg) of the i-th bucket.
+	 */
+	public float getAverage(int i) {
+		return sum[check(i)] / (10f * count[i]);
+	}
+
+	public float getMin(int i) {
+		return WeightDecoder.toKg(getMinTenthsOfKg(i));
+	}
+
+	public float getMax(int i) {
+		return WeightDecoder.toKg(getMaxTenthsOfKg(i));
+	}
+
+	/**
+	 * Number of measurements of the i-th bucket.
+	 */
+	public int getCount(int i) {
+		return count[check(i)];
+	}
+
+	private int check(int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+		}
+		return i;
+	}
+
+}
@@ -0,0 +1,427 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.storage;
+
+import java.util.Arrays;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import eu.fbk.trec.andweight.model.WeightColumns;
+
+/**
+ * In-memory index of the measurements, by patient number and measure time.
+ * 
+ * The measurements of each patient are kept sorted by time in a {@link WeightColumns}, together with a daily rollup
+ * (minimum, maximum, sum and count of each day). So a range query or a latest-N query costs a binary search plus the
+ * size of the result, and a daily or weekly downsampling costs a binary search plus the number of days in the range,
+ * independently of the number of measurements.
+ * 
+ * A measurement in order is appended. The ones older than the last measurement (e.g. the backlog of a scale drained
+ * after newer measurements) are buffered and merged in a single pass, when they are many or before the next query
+ * which needs them, so a drain of m late measurements costs O(m log m) plus one copy of the series, not m copies.
+ * 
+ * The days are local days in the time zone given at creation, with its offset at each instant (daylight saving time
+ * included, as in the decoding of the timestamps of the scales): a day starts at local midnight, so it can be 23 or 25
+ * hours long.
+ * 
+ * This class is thread safe. Every patient has its own lock: the queries run concurrently, an insertion excludes only
+ * the queries on the same patient.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class MeasurementIndex {
+
+	private static final int SECONDS_PER_DAY = 86400;
+
+	// late measurements which trigger a merge (at least 1/8 of the series)
+	private static final int MIN_MERGE = 64;
+
+	// 1970-01-01 was a Thursday: weeks start on Monday
+	private static final int MONDAY_SHIFT = 3;
+
+	private final TimeZone timeZone;
+	private final ConcurrentMap<Integer, Series> series = new ConcurrentHashMap<>();
+
+	/**
+	 * Create an index with the days of the default time zone.
+	 */
+	public MeasurementIndex() {
+		this(TimeZone.getDefault());
+	}
+
+	public MeasurementIndex(TimeZone timeZone) {
+		this.timeZone = (TimeZone) timeZone.clone();
+	}
+
+	/**
+	 * Add all the measurements of a journal.
+	 * 
+	 * @return The number of measurements added.
+	 */
+	public int load(MeasurementJournal journal) {
+		return journal.recover(new MeasurementJournal.Visitor() {
+			@Override
+			public void visit(long sequence, float weight, long time, int patient, boolean delivered) {
+				add(patient, Math.round(weight * 10), time / 1000);
+			}
+		}, false);
+	}
+
+	/**
+	 * Add a measurement.
+	 * 
+	 * @param patient
+	 *            Patient number, or {@link WeightColumns#NO_PATIENT}.
+	 * @param tenthsOfKg
+	 *            Weight (kg / 10).
+	 * @param time
+	 *            Measure time (epoch seconds).
+	 */
+	public void add(int patient, int tenthsOfKg, long time) {
+		Series s = series.get(patient);
+		if (s == null) {
+			Series created = new Series();
+			s = series.putIfAbsent(patient, created);
+			if (s == null) {
+				s = created;
+			}
+		}
+
+		s.lock.writeLock().lock();
+		try {
+			s.add(tenthsOfKg, time, day(time));
+		} finally {
+			s.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Number of measurements of a patient.
+	 */
+	public int size(int patient) {
+		Series s = series.get(patient);
+		if (s == null) {
+			return 0;
+		}
+
+		lockSorted(s);
+		try {
+			return s.weights.size();
+		} finally {
+			s.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Check if a patient has a measurement with the given time and weight.
+	 */
+	public boolean contains(int patient, long time, int tenthsOfKg) {
+		Series s = series.get(patient);
+		if (s == null) {
+			return false;
+		}
+
+		lockSorted(s);
+		try {
+			for (int i = s.lowerBound(time); i < s.weights.size() && s.weights.getTime(i) == time; i++) {
+				if (s.weights.getTenthsOfKg(i) == tenthsOfKg) {
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			s.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Patient numbers with at least one measurement.
+	 */
+	public int[] patients() {
+		int[] patients = new int[series.size()];
+		int i = 0;
+		for (Integer p : series.keySet()) {
+			if (i == patients.length) {
+				patients = Arrays.copyOf(patients, 2 * i);
+			}
+			patients[i++] = p;
+		}
+		patients = Arrays.copyOf(patients, i);
+		Arrays.sort(patients);
+		return patients;
+	}
+
+	/**
+	 * Measurements of a patient with time in [from, to), in chronological order.
+	 * 
+	 * @param from
+	 *            Epoch seconds (inclusive).
+	 * @param to
+	 *            Epoch seconds (exclusive).
+	 */
+	public WeightColumns range(int patient, long from, long to) {
+		WeightColumns result = new WeightColumns();
+		Series s = series.get(patient);
+		if (s == null) {
+			return result;
+		}
+
+		lockSorted(s);
+		try {
+			int start = s.lowerBound(from);
+			int end = s.lowerBound(to);
+			if (end > start) {
+				result.addAll(s.weights, start, end - start);
+			}
+			return result;
+		} finally {
+			s.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The last n measurements of a patient, in chronological order.
+	 */
+	public WeightColumns latest(int patient, int n) {
+		WeightColumns result = new WeightColumns();
+		Series s = series.get(patient);
+		if (s == null) {
+			return result;
+		}
+
+		lockSorted(s);
+		try {
+			int size = s.weights.size();
+			int count = Math.min(n, size);
+			result.addAll(s.weights, size - count, count);
+			return result;
+		} finally {
+			s.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Minimum, maximum and average weight of a patient per day or week, for the buckets which overlap [from, to). The
+	 * buckets are whole days or weeks: the measurements of the first and last bucket outside the range are included.
+	 * 
+	 * @param from
+	 *            Epoch seconds (inclusive).
+	 * @param to
+	 *            Epoch seconds (exclusive).
+	 */
+	public Downsample downsample(int patient, long from, long to, Downsample.Resolution resolution) {
+		Downsample result = new Downsample(resolution);
+		Series s = series.get(patient);
+		if (s == null || to <= from) {
+			return result;
+		}
+
+		s.lock.readLock().lock();
+		try {
+			int first = bucketStart(day(from), resolution);
+			int last = bucketStart(day(to - 1), resolution) + resolution.days - 1;
+			for (int i = s.dayLowerBound(first); i < s.days && s.day[i] <= last; i++) {
+				long start = dayStart(bucketStart(s.day[i], resolution));
+				result.add(start, s.min[i], s.max[i], s.count[i], s.sum[i]);
+			}
+			return result;
+		} finally {
+			s.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Take the read lock of a series, after merging its late measurements (with the write lock) if any.
+	 */
+	private static void lockSorted(Series s) {
+		s.lock.readLock().lock();
+		if (s.late.size() == 0) {
+			return;
+		}
+
+		s.lock.readLock().unlock();
+		s.lock.writeLock().lock();
+		try {
+			s.merge();
+			// downgrade
+			s.lock.readLock().lock();
+		} finally {
+			s.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Local day number of a time (epoch seconds).
+	 */
+	private int day(long time) {
+		long local = time + timeZone.getOffset(time * 1000) / 1000;
+		return (int) (local >= 0 ? local / SECONDS_PER_DAY : (local + 1) / SECONDS_PER_DAY - 1);
+	}
+
+	/**
+	 * Start of a local day (epoch seconds): its local midnight, with the offset in force at that instant.
+	 */
+	private long dayStart(int day) {
+		long midnight = (long) day * SECONDS_PER_DAY;
+		// first guess with the offset of the standard time, then with the offset at the guess
+		long guess = midnight - timeZone.getRawOffset() / 1000;
+		return midnight - timeZone.getOffset(guess * 1000) / 1000;
+	}
+
+	/**
+	 * First day of the bucket of a day.
+	 */
+	private static int bucketStart(int day, Downsample.Resolution resolution) {
+		if (resolution.days == 1) {
+			return day;
+		}
+		int shifted = day + MONDAY_SHIFT;
+		int week = shifted >= 0 ? shifted / 7 : (shifted + 1) / 7 - 1;
+		return week * 7 - MONDAY_SHIFT;
+	}
+
+	/**
+	 * Measurements of a single patient, with the daily rollup (and the lock which protects them).
+	 */
+	private static class Series {
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+		private WeightColumns weights = new WeightColumns(16, false);
+
+		// measurements older than the last one of weights, in order of arrival, not yet merged
+		private final WeightColumns late = new WeightColumns(0, false);
+
+		// daily rollup, sorted by day
+		private int days;
+		private int[] day = new int[8];
+		private int[] min = new int[8];
+		private int[] max = new int[8];
+		private int[] count = new int[8];
+		private long[] sum = new long[8];
+
+		void add(int tenthsOfKg, long time, int d) {
+			// usually appended in order
+			int size = weights.size();
+			if (size == 0 || weights.getTime(size - 1) <= time) {
+				weights.add(tenthsOfKg, time, WeightColumns.NO_PATIENT);
+			} else {
+				late.add(tenthsOfKg, time, WeightColumns.NO_PATIENT);
+				if (late.size() >= Math.max(MIN_MERGE, size >> 3)) {
+					merge();
+				}
+			}
+
+			int i = days > 0 && day[days - 1] <= d ? (day[days - 1] == d ? days - 1 : days) : dayLowerBound(d);
+			if (i < days && day[i] == d) {
+				min[i] = Math.min(min[i], tenthsOfKg);
+				max[i] = Math.max(max[i], tenthsOfKg);
+				count[i]++;
+				sum[i] += tenthsOfKg;
+				return;
+			}
+
+			// new day
+			if (days == day.length) {
+				int length = 2 * days;
+				day = Arrays.copyOf(day, length);
+				min = Arrays.copyOf(min, length);
+				max = Arrays.copyOf(max, length);
+				count = Arrays.copyOf(count, length);
+				sum = Arrays.copyOf(sum, length);
+			}
+			int n = days - i;
+			System.arraycopy(day, i, day, i + 1, n);
+			System.arraycopy(min, i, min, i + 1, n);
+			System.arraycopy(max, i, max, i + 1, n);
+			System.arraycopy(count, i, count, i + 1, n);
+			System.arraycopy(sum, i, sum, i + 1, n);
+			day[i] = d;
+			min[i] = tenthsOfKg;
+			max[i] = tenthsOfKg;
+			count[i] = 1;
+			sum[i] = tenthsOfKg;
+			days++;
+		}
+
+		/**
+		 * Merge the late measurements into the sorted ones, in a single pass (after the ones with the same time, in
+		 * order of arrival).
+		 */
+		void merge() {
+			int m = late.size();
+			if (m == 0) {
+				return;
+			}
+
+			// sort by time, then by arrival (the time is an unsigned int, the index a positive int)
+			long[] order = new long[m];
+			for (int j = 0; j < m; j++) {
+				order[j] = late.getTime(j) << 31 | j;
+			}
+			Arrays.sort(order);
+
+			int n = weights.size();
+			WeightColumns merged = new WeightColumns(n + m, false);
+			int i = 0;
+			for (long o : order) {
+				int j = (int) (o & Integer.MAX_VALUE);
+				long time = late.getTime(j);
+				int end = i;
+				while (end < n && weights.getTime(end) <= time) {
+					end++;
+				}
+				merged.addAll(weights, i, end - i);
+				merged.add(late.getTenthsOfKg(j), time, WeightColumns.NO_PATIENT);
+				i = end;
+			}
+			merged.addAll(weights, i, n - i);
+
+			weights = merged;
+			late.clear();
+		}
+
+		/**
+		 * Index of the first measurement with time >= t.
+		 */
+		int lowerBound(long t) {
+			int lo = 0;
+			int hi = weights.size();
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (weights.getTime(mid) < t) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		/**
+		 * Index of the first day >= d in the rollup.
+		 */
+		int dayLowerBound(int d) {
+			int lo = 0;
+			int hi = days;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (day[mid] < d) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+
+}
@@ -0,0 +1,428 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import eu.fbk.trec.andweight.model.AndWeight;
+import eu.fbk.trec.andweight.utils.Logger;
+
+/**
+ * Durable, append-only journal of the measurements, written through memory mapped files.
+ * 
+ * Every measurement is a fixed size record, appended before the weight scale receives the ack, so a measurement the
+ * scale has already discarded is never lost if the process dies: the mapped pages belong to the kernel and are written
+ * to disk even if the process is killed. Call {@link #force()} to survive a power loss too.
+ * 
+ * The records are stored in segments of a fixed number of records: the record with sequence number S is in the
+ * segment S / recordsPerSegment, at slot S % recordsPerSegment. When a segment is full the next one is created, and
+ * the oldest ones are deleted when more than maxSegments exist, unless they still have records not yet delivered
+ * (then the journal grows past maxSegments and a warning is logged). A record is valid if it starts with the magic
+ * number and its checksum matches: a new segment is zero-filled, so the recovery scan stops at the first invalid slot.
+ * 
+ * Record layout (32 bytes, big endian):
+ * 
+ * <pre>
+ * 0  magic (4)       written last
+ * 4  checksum (4)    of the bytes 8-29
+ * 8  sequence (8)
+ * 16 measure time (8, epoch milliseconds)
+ * 24 weight (4, float kg)
+ * 28 patient number (2, -1 if unknown)
+ * 30 reserved (1)
+ * 31 delivered (1)   set by delivered()
+ * </pre>
+ * 
+ * This class is thread safe.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class MeasurementJournal implements Closeable {
+	private static final String TAG = MeasurementJournal.class.getSimpleName();
+
+	/**
+	 * Size of a record in bytes.
+	 */
+	public static final int RECORD_SIZE = 32;
+
+	// default sizes
+	public static final int DEFAULT_RECORDS_PER_SEGMENT = 4096;
+	public static final int DEFAULT_MAX_SEGMENTS = 16;
+
+	// record layout
+	private static final int MAGIC = 0x414A5231; // AJR1
+	private static final int CHECKSUM = 4;
+	private static final int SEQUENCE = 8;
+	private static final int TIME = 16;
+	private static final int WEIGHT = 24;
+	private static final int PATIENT = 28;
+	private static final int DELIVERED = 31;
+
+	// file names
+	private static final String PREFIX = "journal-";
+	private static final String SUFFIX = ".seg";
+
+	/**
+	 * Receives the records found by {@link MeasurementJournal#recover(Visitor, boolean)}.
+	 */
+	public interface Visitor {
+
+		public void visit(long sequence, float weight, long time, int patient, boolean delivered);
+
+	}
+
+	private final File directory;
+	private final int recordsPerSegment;
+	private final int maxSegments;
+
+	// mapped segments, from the oldest (index first) to the current one
+	private final List<MappedByteBuffer> segments = new ArrayList<>();
+	private long first;
+
+	// sequence of the next record
+	private long next;
+	private boolean closed;
+
+	/**
+	 * Open (or create) a journal with the default sizes.
+	 */
+	public MeasurementJournal(File directory) throws IOException {
+		this(directory, DEFAULT_RECORDS_PER_SEGMENT, DEFAULT_MAX_SEGMENTS);
+	}
+
+	/**
+	 * Open (or create) a journal: the existing segments are mapped and scanned to find the next free slot.
+	 * 
+	 * @param directory
+	 *            Directory of the segments.
+	 * @param recordsPerSegment
+	 *            Number of records of a segment.
+	 * @param maxSegments
+	 *            Maximum number of segments kept (the older ones are deleted once delivered).
+	 */
+	public MeasurementJournal(File directory, int recordsPerSegment, int maxSegments) throws IOException {
+		if (directory == null) {
+			throw new RuntimeException("Directory cannot be null!");
+		}
+		if (recordsPerSegment < 1 || maxSegments < 1) {
+			throw new RuntimeException("recordsPerSegment and maxSegments must be positive!");
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+
+		this.directory = directory;
+		this.recordsPerSegment = recordsPerSegment;
+		this.maxSegments = maxSegments;
+
+		open();
+	}
+
+	/**
+	 * Map the existing segments and find the first free slot.
+	 */
+	private void open() throws IOException {
+		long[] indexes = existingSegments();
+
+		// only the last run of consecutive segments is meaningful
+		int start = indexes.length;
+		while (start > 0 && (start == indexes.length || indexes[start - 1] == indexes[start] - 1)) {
+			start--;
+		}
+		for (int i = 0; i < start; i++) {
+			delete(indexes[i]);
+		}
+
+		if (start == indexes.length) {
+			first = 0;
+			next = 0;
+			segments.add(map(0));
+			return;
+		}
+
+		first = indexes[start];
+		for (int i = start; i < indexes.length; i++) {
+			segments.add(map(indexes[i]));
+		}
+
+		// the first free slot is in the last segment
+		long last = indexes[indexes.length - 1];
+		MappedByteBuffer segment = segments.get(segments.size() - 1);
+		int slot = 0;
+		while (slot < recordsPerSegment && isValid(segment, slot * RECORD_SIZE)) {
+			slot++;
+		}
+		next = last * recordsPerSegment + slot;
+
+		Logger.i(TAG, "opened " + directory + ": segments " + first + "-" + last + ", next record " + next);
+	}
+
+	/**
+	 * Append a measurement.
+	 * 
+	 * @param weight
+	 *            Weight (kg).
+	 * @param time
+	 *            Measure time (epoch milliseconds).
+	 * @param patient
+	 *            Patient number, or -1.
+	 * @return The sequence number of the record.
+	 * @throws IOException
+	 *             If the journal is closed or a new segment cannot be created (the measure is not recorded).
+	 */
+	public synchronized long append(float weight, long time, int patient) throws IOException {
+		if (closed) {
+			throw new IOException("Journal closed");
+		}
+
+		int slot = (int) (next % recordsPerSegment);
+		if (slot == 0 && next / recordsPerSegment != first + segments.size() - 1) {
+			roll();
+		}
+
+		MappedByteBuffer segment = segments.get(segments.size() - 1);
+		int offset = slot * RECORD_SIZE;
+
+		segment.putLong(offset + SEQUENCE, next);
+		segment.putLong(offset + TIME, time);
+		segment.putFloat(offset + WEIGHT, weight);
+		segment.putShort(offset + PATIENT, (short) patient);
+		segment.putInt(offset + CHECKSUM, checksum(segment, offset));
+
+		// the record is valid only when it is complete
+		segment.putInt(offset, MAGIC);
+
+		return next++;
+	}
+
+	/**
+	 * Append a measurement.
+	 * 
+	 * @see #append(float, long, int)
+	 */
+	public long append(AndWeight weight) throws IOException {
+		return append(weight.getWeight(), weight.getMeasureDate().getTime(), weight.getPatient());
+	}
+
+	/**
+	 * Mark a record as delivered to the application (no effect if the segment has already been deleted).
+	 */
+	public synchronized void delivered(long sequence) {
+		if (closed || sequence < 0 || sequence >= next) {
+			return;
+		}
+
+		long index = sequence / recordsPerSegment;
+		if (index < first) {
+			return;
+		}
+
+		MappedByteBuffer segment = segments.get((int) (index - first));
+		segment.put((int) (sequence % recordsPerSegment) * RECORD_SIZE + DELIVERED, (byte) 1);
+	}
+
+	/**
+	 * Scan the valid records, from the oldest.
+	 * 
+	 * @param visitor
+	 *            Receives the records.
+	 * @param pendingOnly
+	 *            True to visit only the records not yet delivered.
+	 * @return The number of records visited.
+	 */
+	public synchronized int recover(Visitor visitor, boolean pendingOnly) {
+		int count = 0;
+		for (int s = 0; s < segments.size(); s++) {
+			MappedByteBuffer segment = segments.get(s);
+
+			for (int slot = 0; slot < recordsPerSegment; slot++) {
+				int offset = slot * RECORD_SIZE;
+				if (!isValid(segment, offset)) {
+					break;
+				}
+
+				boolean delivered = segment.get(offset + DELIVERED) != 0;
+				if (pendingOnly && delivered) {
+					continue;
+				}
+
+				visitor.visit(segment.getLong(offset + SEQUENCE), segment.getFloat(offset + WEIGHT),
+						segment.getLong(offset + TIME), segment.getShort(offset + PATIENT), delivered);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * The measurements not yet delivered, with their sequence numbers.
+	 */
+	public List<AndWeight> pending(final List<Long> sequences) {
+		final List<AndWeight> weights = new ArrayList<>();
+		recover(new Visitor() {
+			@Override
+			public void visit(long sequence, float weight, long time, int patient, boolean delivered) {
+				weights.add(new AndWeight(weight, new Date(time), patient));
+				if (sequences != null) {
+					sequences.add(sequence);
+				}
+			}
+		}, true);
+		return weights;
+	}
+
+	/**
+	 * Sequence number of the next record.
+	 */
+	public synchronized long getNextSequence() {
+		return next;
+	}
+
+	/**
+	 * Write the mapped segments to the disk (slow: milliseconds).
+	 */
+	public synchronized void force() {
+		for (MappedByteBuffer segment : segments) {
+			segment.force();
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		force();
+		segments.clear();
+	}
+
+	/**
+	 * Start a new segment and delete the oldest ones, but not a segment with records not yet delivered: the journal
+	 * grows past maxSegments until they are delivered.
+	 */
+	private void roll() throws IOException {
+		long index = next / recordsPerSegment;
+		segments.add(map(index));
+
+		while (segments.size() > maxSegments) {
+			int pending = countPending(segments.get(0));
+			if (pending > 0) {
+				Logger.w(TAG, "segment " + first + " has " + pending + " records not delivered, keeping "
+						+ segments.size() + " segments (max " + maxSegments + ")");
+				break;
+			}
+			segments.remove(0);
+			delete(first++);
+		}
+	}
+
+	/**
+	 * Number of valid records of a segment not yet delivered.
+	 */
+	private int countPending(MappedByteBuffer segment) {
+		int pending = 0;
+		for (int slot = 0; slot < recordsPerSegment; slot++) {
+			int offset = slot * RECORD_SIZE;
+			if (!isValid(segment, offset)) {
+				break;
+			}
+			if (segment.get(offset + DELIVERED) == 0) {
+				pending++;
+			}
+		}
+		return pending;
+	}
+
+	/**
+	 * Map a segment, creating it if needed.
+	 */
+	private MappedByteBuffer map(long index) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segmentFile(index), "rw");
+		try {
+			long size = (long) recordsPerSegment * RECORD_SIZE;
+			if (file.length() != size) {
+				file.setLength(size);
+			}
+			return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			// the mapping stays valid after the file is closed
+			file.close();
+		}
+	}
+
+	private void delete(long index) {
+		File file = segmentFile(index);
+		if (!file.delete()) {
+			Logger.e(TAG, "cannot delete " + file);
+		}
+	}
+
+	private File segmentFile(long index) {
+		return new File(directory, PREFIX + String.format(Locale.US, "%012d", index) + SUFFIX);
+	}
+
+	/**
+	 * Indexes of the segments in the directory, sorted.
+	 */
+	private long[] existingSegments() {
+		String[] names = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		if (names == null) {
+			return new long[0];
+		}
+
+		long[] indexes = new long[names.length];
+		int n = 0;
+		for (String name : names) {
+			try {
+				indexes[n] = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+				n++;
+			} catch (NumberFormatException e) {
+				Logger.e(TAG, "ignoring " + name);
+			}
+		}
+		indexes = Arrays.copyOf(indexes, n);
+		Arrays.sort(indexes);
+		return indexes;
+	}
+
+	private static boolean isValid(MappedByteBuffer segment, int offset) {
+		return segment.getInt(offset) == MAGIC && segment.getInt(offset + CHECKSUM) == checksum(segment, offset);
+	}
+
+	/**
+	 * FNV-1a over the ints of the bytes 8-29 of the record (the delivered flag is not included).
+	 */
+	private static int checksum(MappedByteBuffer segment, int offset) {
+		int h = 0x811C9DC5;
+		for (int i = SEQUENCE; i < PATIENT; i += 4) {
+			h = (h ^ segment.getInt(offset + i)) * 0x01000193;
+		}
+		h = (h ^ segment.getShort(offset + PATIENT)) * 0x01000193;
+		return h;
+	}
+
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.bluetooth.BluetoothSocket;
+
+/**
+ * Connection with a weight scale over a BlueTooth RFCOMM socket.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class BluetoothConnection implements ScaleConnection {
+
+	private final BluetoothSocket socket;
+
+	public BluetoothConnection(BluetoothSocket socket) {
+		if (socket == null) {
+			throw new RuntimeException("Socket cannot be null!");
+		}
+		this.socket = socket;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return socket.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return socket.getOutputStream();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return socket.isConnected();
+	}
+
+	@Override
+	public String getName() {
+		return socket.getRemoteDevice().getName();
+	}
+
+	@Override
+	public String getAddress() {
+		return socket.getRemoteDevice().getAddress();
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+}
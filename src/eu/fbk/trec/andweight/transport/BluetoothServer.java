@@ -0,0 +1,55 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.transport;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothServerSocket;
+
+/**
+ * Accept connections from the weight scales over BlueTooth (SPP profile).
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class BluetoothServer implements ScaleServer {
+
+	// BlueTooth
+	private static final String NAME = "Service Name";
+	private static final UUID uuid = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+	private volatile BluetoothServerSocket serverSocket;
+
+	@Override
+	public void open() throws IOException {
+		BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+		serverSocket = bluetoothAdapter.listenUsingRfcommWithServiceRecord(NAME, uuid);
+	}
+
+	@Override
+	public ScaleConnection accept() throws IOException {
+		BluetoothServerSocket s = serverSocket;
+		if (s == null) {
+			throw new IOException("Server not open");
+		}
+		return new BluetoothConnection(s.accept());
+	}
+
+	@Override
+	public void close() throws IOException {
+		BluetoothServerSocket s = serverSocket;
+		serverSocket = null;
+		if (s != null) {
+			s.close();
+		}
+	}
+
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A blocking connection with a weight scale (e.g. a BlueTooth socket).
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public interface ScaleConnection extends Closeable {
+
+	public InputStream getInputStream() throws IOException;
+
+	public OutputStream getOutputStream() throws IOException;
+
+	public boolean isConnected();
+
+	/**
+	 * Human readable name of the remote device.
+	 */
+	public String getName();
+
+	/**
+	 * Identity of the remote device, the same on every connection (e.g. its BlueTooth address, not the name which is
+	 * the same for every scale of a model).
+	 */
+	public String getAddress();
+
+	@Override
+	public void close() throws IOException;
+
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A blocking server which accepts connections from the weight scales.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public interface ScaleServer extends Closeable {
+
+	/**
+	 * Start listening. Must be called once, before {@link #accept()}.
+	 */
+	public void open() throws IOException;
+
+	/**
+	 * Wait for the next connection.
+	 */
+	public ScaleConnection accept() throws IOException;
+
+	/**
+	 * Stop listening; a blocked {@link #accept()} fails with an IOException.
+	 */
+	@Override
+	public void close() throws IOException;
+
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Connection with a weight scale bridged over TCP.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class SocketConnection implements ScaleConnection {
+
+	private final Socket socket;
+
+	public SocketConnection(Socket socket) {
+		if (socket == null) {
+			throw new RuntimeException("Socket cannot be null!");
+		}
+		this.socket = socket;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return socket.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return socket.getOutputStream();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return socket.isConnected() && !socket.isClosed();
+	}
+
+	@Override
+	public String getName() {
+		return String.valueOf(socket.getRemoteSocketAddress());
+	}
+
+	/**
+	 * The host (without the port, which changes on every connection).
+	 */
+	@Override
+	public String getAddress() {
+		return socket.getInetAddress().getHostAddress();
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+}
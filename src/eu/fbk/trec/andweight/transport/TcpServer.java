@@ -0,0 +1,66 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+
+/**
+ * Accept connections from weight scales bridged over TCP (blocking, one thread per connection).
+ * 
+ * See {@link eu.fbk.trec.andweight.service.NioGateway} for the non-blocking version.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class TcpServer implements ScaleServer {
+
+	private final InetSocketAddress address;
+	private volatile ServerSocket serverSocket;
+
+	public TcpServer(InetSocketAddress address) {
+		this.address = address;
+	}
+
+	@Override
+	public void open() throws IOException {
+		ServerSocket s = new ServerSocket();
+		s.setReuseAddress(true);
+		s.bind(address);
+		serverSocket = s;
+	}
+
+	/**
+	 * Local port, useful when listening on port 0.
+	 */
+	public int getLocalPort() {
+		ServerSocket s = serverSocket;
+		return s == null ? -1 : s.getLocalPort();
+	}
+
+	@Override
+	public ScaleConnection accept() throws IOException {
+		ServerSocket s = serverSocket;
+		if (s == null) {
+			throw new IOException("Server not open");
+		}
+		return new SocketConnection(s.accept());
+	}
+
+	@Override
+	public void close() throws IOException {
+		ServerSocket s = serverSocket;
+		serverSocket = null;
+		if (s != null) {
+			s.close();
+		}
+	}
+
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.utils;
+
+/**
+ * Lazy, level-guarded logging of the raw frames exchanged with the weight scale.
+ * 
+ * The frames are formatted only if the level is enabled for the {@link #TAG} tag (e.g.
+ * <code>adb shell setprop log.tag.FrameLog VERBOSE</code>), so a disabled level costs a single check. The text is
+ * built in a per-thread reusable StringBuilder.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public final class FrameLog {
+
+	/**
+	 * Tag which controls the level of the frame logging.
+	 */
+	public static final String TAG = FrameLog.class.getSimpleName();
+
+	// prefixes
+	private static final String IN = "IN  <<< ";
+	private static final String IN_ASCII = "in  ^^^ ";
+	private static final String OUT = "OUT >>> ";
+	private static final String OUT_ASCII = "out ^^^ ";
+
+	// reusable builder
+	private static final ThreadLocal<StringBuilder> BUILDER = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(256);
+		}
+	};
+
+	private FrameLog() {
+	}
+
+	/**
+	 * Check if the frames of the given level are logged.
+	 */
+	public static boolean isEnabled(int level) {
+		return Logger.isLoggable(TAG, level);
+	}
+
+	/**
+	 * Log the bytes read from the weight scale (hex at DEBUG, ascii at VERBOSE).
+	 */
+	public static void in(byte[] bb, int offset, int length) {
+		log(IN, IN_ASCII, bb, offset, length);
+	}
+
+	/**
+	 * Log the bytes written to the weight scale (hex at DEBUG, ascii at VERBOSE).
+	 */
+	public static void out(byte[] bb, int offset, int length) {
+		log(OUT, OUT_ASCII, bb, offset, length);
+	}
+
+	private static void log(String hexPrefix, String asciiPrefix, byte[] bb, int offset, int length) {
+		if (!Logger.isLoggable(TAG, Logger.DEBUG)) {
+			return;
+		}
+
+		StringBuilder sb = BUILDER.get();
+		sb.setLength(0);
+		Logger.d(TAG, HexUtil.appendDump(sb.append(hexPrefix), bb, offset, length).toString());
+
+		if (Logger.isLoggable(TAG, Logger.VERBOSE)) {
+			sb.setLength(0);
+			Logger.v(TAG, HexUtil.appendAscii(sb.append(asciiPrefix), bb, offset, length).toString());
+		}
+	}
+
+}
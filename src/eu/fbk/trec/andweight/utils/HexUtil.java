@@ -16,30 +16,18 @@ package eu.fbk.trec.andweight.utils;
  */
 public class HexUtil {
 
-	private HexUtil() {
-	}
-
-	private static final char toHexChar(int b) {
-		switch (0XF & b) {
-		case 0xF:
-			return 'F';
-		case 0xE:
-			return 'E';
-		case 0xD:
-			return 'D';
-		case 0xC:
-			return 'C';
-		case 0xB:
-			return 'B';
-		case 0xA:
-			return 'A';
-		default:
-			return (char) ('0' + (0xF & b));
+	// 2 chars for each of the 256 byte values
+	private static final char[] HEX = new char[512];
+
+	static {
+		char[] digits = "0123456789ABCDEF".toCharArray();
+		for (int b = 0; b < 256; b++) {
+			HEX[2 * b] = digits[b >> 4];
+			HEX[2 * b + 1] = digits[b & 0xF];
 		}
 	}
 
-	private static final String toHexString(int b) {
-		return "" + toHexChar(b >> 4) + toHexChar(b);
+	private HexUtil() {
 	}
 
 	public static final String dump(byte[] bb) {
@@ -47,18 +35,45 @@ public class HexUtil {
 	}
 
 	public static final String dump(byte[] bb, int firstN) {
-		if (bb.length < firstN) {
-			throw new RuntimeException("bb.length < firstN");
+		return dump(bb, 0, firstN);
+	}
+
+	public static final String dump(byte[] bb, int offset, int length) {
+		return appendDump(new StringBuilder(3 * length + 3), bb, offset, length).toString();
+	}
+
+	/**
+	 * Append the hex dump of the bytes to the given builder, e.g. "[ 50 57 ]".
+	 */
+	public static final StringBuilder appendDump(StringBuilder sb, byte[] bb, int offset, int length) {
+		check(bb, offset, length);
+
+		sb.append("[ ");
+		for (int i = offset; i < offset + length; i++) {
+			int b = 2 * (0xFF & bb[i]);
+			sb.append(HEX[b]).append(HEX[b + 1]).append(' ');
 		}
+		sb.append(']');
 
-		StringBuilder sb = new StringBuilder("[ ");
-		for (int i = 0; i < firstN; i++) {
-			int b = 0xFF & bb[i];
-			sb.append(toHexString(b)).append(" ");
+		return sb;
+	}
+
+	/**
+	 * Write the hex digits of the bytes (2 chars per byte, no separators) in the given array.
+	 * 
+	 * @return The index after the last written char.
+	 */
+	public static final int hex(char[] out, int outOffset, byte[] bb, int offset, int length) {
+		check(bb, offset, length);
+
+		int j = outOffset;
+		for (int i = offset; i < offset + length; i++) {
+			int b = 2 * (0xFF & bb[i]);
+			out[j++] = HEX[b];
+			out[j++] = HEX[b + 1];
 		}
-		sb.append("]");
 
-		return sb.toString();
+		return j;
 	}
 
 	public static final int intFromAsciiHex(byte b) {
@@ -70,12 +85,21 @@ public class HexUtil {
 	}
 
 	public static final String ascii(byte[] bb, int firstN) {
-		if (bb.length < firstN) {
-			throw new RuntimeException("bb.length < firstN");
-		}
+		return ascii(bb, 0, firstN);
+	}
+
+	public static final String ascii(byte[] bb, int offset, int length) {
+		return appendAscii(new StringBuilder(3 * length + 3), bb, offset, length).toString();
+	}
 
-		StringBuilder sb = new StringBuilder("[ ");
-		for (int i = 0; i < firstN; i++) {
+	/**
+	 * Append the printable form of the bytes to the given builder, e.g. "[  P  W CR LF ]".
+	 */
+	public static final StringBuilder appendAscii(StringBuilder sb, byte[] bb, int offset, int length) {
+		check(bb, offset, length);
+
+		sb.append("[ ");
+		for (int i = offset; i < offset + length; i++) {
 			switch (bb[i]) {
 			case 0x0A:
 				sb.append("LF");
@@ -86,14 +110,20 @@ public class HexUtil {
 				break;
 
 			default:
-				sb.append(" ").append((char) bb[i]);
+				sb.append(' ').append((char) bb[i]);
 			}
 
-			sb.append(" ");
+			sb.append(' ');
 		}
-		sb.append("]");
+		sb.append(']');
+
+		return sb;
+	}
 
-		return sb.toString();
+	private static final void check(byte[] bb, int offset, int length) {
+		if (bb.length < offset + length) {
+			throw new RuntimeException("bb.length < offset + length");
+		}
 	}
 
 }
@@ -0,0 +1,128 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.utils;
+
+import java.util.logging.Level;
+
+import android.util.Log;
+
+/**
+ * Logging of the classes which run also outside Android (sessions, gateway, journal, simulator).
+ * 
+ * On a device the calls go to {@link Log}; on a plain JVM (where the android.jar stubs throw "Stub!") they go to
+ * java.util.logging, with the tag as logger name. The levels are the ones of {@link Log}.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public final class Logger {
+
+	public static final int VERBOSE = 2;
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+
+	private static final boolean ANDROID = isAndroid();
+
+	private Logger() {
+	}
+
+	/**
+	 * Check if the messages of the given level are logged for the tag.
+	 */
+	public static boolean isLoggable(String tag, int level) {
+		if (ANDROID) {
+			return Log.isLoggable(tag, level);
+		}
+		return java.util.logging.Logger.getLogger(tag).isLoggable(toLevel(level));
+	}
+
+	public static void v(String tag, String msg) {
+		log(VERBOSE, tag, msg, null);
+	}
+
+	public static void d(String tag, String msg) {
+		log(DEBUG, tag, msg, null);
+	}
+
+	public static void i(String tag, String msg) {
+		log(INFO, tag, msg, null);
+	}
+
+	public static void w(String tag, String msg) {
+		log(WARN, tag, msg, null);
+	}
+
+	public static void w(String tag, String msg, Throwable tr) {
+		log(WARN, tag, msg, tr);
+	}
+
+	public static void e(String tag, String msg) {
+		log(ERROR, tag, msg, null);
+	}
+
+	public static void e(String tag, String msg, Throwable tr) {
+		log(ERROR, tag, msg, tr);
+	}
+
+	private static void log(int level, String tag, String msg, Throwable tr) {
+		if (!ANDROID) {
+			java.util.logging.Logger.getLogger(tag).log(toLevel(level), msg, tr);
+			return;
+		}
+
+		switch (level) {
+		case VERBOSE:
+			Log.v(tag, msg, tr);
+			break;
+		case DEBUG:
+			Log.d(tag, msg, tr);
+			break;
+		case INFO:
+			Log.i(tag, msg, tr);
+			break;
+		case WARN:
+			Log.w(tag, msg, tr);
+			break;
+		default:
+			Log.e(tag, msg, tr);
+			break;
+		}
+	}
+
+	private static Level toLevel(int level) {
+		switch (level) {
+		case VERBOSE:
+			return Level.FINEST;
+		case DEBUG:
+			return Level.FINE;
+		case INFO:
+			return Level.INFO;
+		case WARN:
+			return Level.WARNING;
+		default:
+			return Level.SEVERE;
+		}
+	}
+
+	/**
+	 * True if android.util.Log works (on a device or emulator, not with the stubs of android.jar).
+	 */
+	private static boolean isAndroid() {
+		try {
+			Log.isLoggable(Logger.class.getSimpleName(), INFO);
+			return true;
+		} catch (Throwable t) {
+			// RuntimeException("Stub!") or NoClassDefFoundError
+			return false;
+		}
+	}
+
+}
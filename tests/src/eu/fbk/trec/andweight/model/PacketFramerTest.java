@@ -0,0 +1,149 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Framing of the byte stream of a weight scale into packets.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class PacketFramerTest extends TestCase {
+
+	public void testFramesSplitInChunks() throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		stream.write(ascii("PWCAPI"));
+		stream.write(weightFrame());
+		stream.write(ascii("xx"));
+		stream.write(ascii("PWRQPI,07"));
+		stream.write(weightFrame());
+
+		// every length is possible, also in the middle of a header (garbage may come in pieces)
+		for (int chunk = 1; chunk <= 100; chunk++) {
+			List<Integer> lengths = frames(new PacketFramer(100), stream.toByteArray(), chunk);
+			assertEquals("chunk " + chunk, "[6, 81, 2, 9, 81]", lengths.toString());
+		}
+	}
+
+	public void testIncompleteFrameWaits() throws IOException {
+		byte[] frame = weightFrame();
+		PacketFramer framer = new PacketFramer(100);
+
+		framer.read(new Chunks(frame, 0, 40, 40));
+		assertFalse(framer.next());
+
+		framer.read(new Chunks(frame, 40, frame.length - 40, 100));
+		assertTrue(framer.next());
+		assertEquals(frame.length, framer.frameLength());
+		assertEquals(InPacket.Type.WEIGHT, new InPacket(framer.buffer(), framer.frameOffset(),
+				framer.frameLength()).getType());
+		assertFalse(framer.next());
+	}
+
+	public void testTooLongFrameIsGarbage() throws IOException {
+		byte[] frame = weightFrame();
+		frame[5] = 0x10;
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		stream.write(frame, 0, 10);
+		stream.write(ascii("PWCAPI"));
+
+		// skipped up to the next byte which can start a packet
+		assertEquals("[10, 6]", frames(new PacketFramer(100), stream.toByteArray(), 100).toString());
+	}
+
+	/**
+	 * Weight frame of the UC-351PBT-Ci (81 bytes).
+	 */
+	static byte[] weightFrame() {
+		byte[] frame = new byte[InPacket.HEADER_LENGHT + InPacket.WEIGHT_LENGHT];
+		frame[0] = 0x02;
+		frame[2] = InPacket.WEIGHT_LENGHT;
+		frame[6] = 0x42;
+		frame[7] = 0x01;
+		byte[] section = ascii("ST,  070.4kg     01  ");
+		System.arraycopy(section, 0, frame, InPacket.HEADER_LENGHT, section.length);
+		return frame;
+	}
+
+	static byte[] ascii(String s) {
+		byte[] bb = new byte[s.length()];
+		for (int i = 0; i < bb.length; i++) {
+			bb[i] = (byte) s.charAt(i);
+		}
+		return bb;
+	}
+
+	private static List<Integer> frames(PacketFramer framer, byte[] bytes, int chunk) throws IOException {
+		List<Integer> lengths = new ArrayList<>();
+		InputStream input = new Chunks(bytes, 0, bytes.length, chunk);
+		boolean previousGarbage = false;
+		while (framer.read(input) >= 0) {
+			while (framer.next()) {
+				boolean garbage = isGarbage(framer.buffer()[framer.frameOffset()]);
+				if (garbage && previousGarbage) {
+					lengths.set(lengths.size() - 1, lengths.get(lengths.size() - 1) + framer.frameLength());
+				} else {
+					lengths.add(framer.frameLength());
+				}
+				previousGarbage = garbage;
+			}
+		}
+		return lengths;
+	}
+
+	/**
+	 * True if the byte cannot start a packet (consecutive pieces of garbage are counted together).
+	 */
+	private static boolean isGarbage(byte b) {
+		return b != 0x02 && b != 'P';
+	}
+
+	/**
+	 * Stream which returns at most chunk bytes per read, like a socket.
+	 */
+	private static class Chunks extends InputStream {
+		private final byte[] bytes;
+		private final int end;
+		private final int chunk;
+		private int position;
+
+		Chunks(byte[] bytes, int offset, int length, int chunk) {
+			this.bytes = bytes;
+			this.position = offset;
+			this.end = offset + length;
+			this.chunk = chunk;
+		}
+
+		@Override
+		public int read() {
+			return position < end ? bytes[position++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (position >= end) {
+				return -1;
+			}
+			int n = Math.min(Math.min(len, chunk), end - position);
+			System.arraycopy(bytes, position, b, off, n);
+			position += n;
+			return n;
+		}
+	}
+
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.model;
+
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+/**
+ * Conversion of the dates sent by the weight scale: the same result of a {@link Calendar}, also on the days of the
+ * daylight saving switch.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class TimestampDecoderTest extends TestCase {
+	private static final String[] ZONES = { "UTC", "Europe/Rome", "America/New_York", "Australia/Sydney",
+			"Asia/Kolkata" };
+
+	public void testDaylightSavingDays() {
+		TimeZone rome = TimeZone.getTimeZone("Europe/Rome");
+		TimestampDecoder decoder = new TimestampDecoder(rome);
+
+		// 2015-03-29 02:30 does not exist, 2015-10-25 02:30 is repeated
+		for (int day : new int[] { 28, 29, 30 }) {
+			for (int hour = 0; hour < 24; hour++) {
+				assertSame(rome, decoder, 2015, Calendar.MARCH, day, hour, 30, 15);
+			}
+		}
+		for (int day : new int[] { 24, 25, 26 }) {
+			for (int hour = 0; hour < 24; hour++) {
+				assertSame(rome, decoder, 2015, Calendar.OCTOBER, day, hour, 30, 15);
+			}
+		}
+	}
+
+	public void testRandomDates() {
+		Random random = new Random(42);
+		for (String id : ZONES) {
+			TimeZone timeZone = TimeZone.getTimeZone(id);
+			TimestampDecoder decoder = new TimestampDecoder(timeZone);
+			for (int i = 0; i < 5000; i++) {
+				assertSame(timeZone, decoder, 2000 + random.nextInt(40), random.nextInt(12), 1 + random.nextInt(28),
+						random.nextInt(24), random.nextInt(60), random.nextInt(60));
+			}
+		}
+	}
+
+	public void testDecode() {
+		TimeZone utc = TimeZone.getTimeZone("UTC");
+		byte[] bb = new byte[] { 0, 0, (byte) 0xdf, 0x07, 2, 29, 23, 59, 58 };
+
+		// 2015-03-29 23:59:58 UTC (0-based month)
+		assertEquals(1427673598L, new TimestampDecoder(utc).decode(bb, 2));
+	}
+
+	private static void assertSame(TimeZone timeZone, TimestampDecoder decoder, int year, int month, int day,
+			int hour, int minute, int second) {
+		Calendar calendar = Calendar.getInstance(timeZone);
+		calendar.clear();
+		calendar.set(year, month, day, hour, minute, second);
+
+		String date = year + "-" + (month + 1) + "-" + day + " " + hour + ":" + minute + ":" + second + " "
+				+ timeZone.getID();
+		assertEquals(date, calendar.getTimeInMillis() / 1000,
+				decoder.toEpochSeconds(year, month, day, hour, minute, second));
+	}
+
+}
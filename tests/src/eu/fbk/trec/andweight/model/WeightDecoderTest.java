@@ -0,0 +1,58 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.model;
+
+import junit.framework.TestCase;
+
+/**
+ * Fixed point parsing of the weights (tenths of kg).
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class WeightDecoderTest extends TestCase {
+
+	public void testKilograms() {
+		assertEquals(704, decode("  070.4", "kg"));
+		assertEquals(704, decode(" 0070.4", "kg"));
+		assertEquals(704, decode("+070.40", "kg"));
+		assertEquals(1543, decode("154.3  ", "kg"));
+		assertEquals(-12, decode("   -1.2", "kg"));
+	}
+
+	public void testRoundingHalfAwayFromZero() {
+		assertEquals(705, decode("  70.45", "kg"));
+		assertEquals(704, decode("  70.44", "kg"));
+		assertEquals(2205, decode(" 220.46", "kg"));
+	}
+
+	public void testPounds() {
+		assertEquals(319, decode("  070.4", "lb"));
+		assertEquals(700, decode("154.3  ", "lb"));
+		assertEquals(1000, decode(" 220.46", "lb"));
+		assertEquals(-5, decode("   -1.2", "lb"));
+	}
+
+	public void testInvalid() {
+		assertEquals(WeightDecoder.INVALID, decode("  12a.4", "kg"));
+		assertEquals(WeightDecoder.INVALID, decode("       ", "kg"));
+		assertEquals(WeightDecoder.INVALID, decode("  070.4", "st"));
+	}
+
+	public void testToKg() {
+		assertEquals(70.4f, WeightDecoder.toKg(704));
+		assertEquals(-1.2f, WeightDecoder.toKg(-12));
+	}
+
+	private static int decode(String value, String unit) {
+		byte[] bb = PacketFramerTest.ascii("__" + value + unit);
+		return WeightDecoder.tenthsOfKg(bb, 2, value.length(), 2 + value.length());
+	}
+
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.model;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Binary format of the lists of weights (version 1 and 2).
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class WeightsCodecTest extends TestCase {
+
+	public void testRoundTrip() {
+		List<AndWeight> weights = Arrays.asList(new AndWeight(70.4f, new Date(1427673598000L), 7),
+				new AndWeight(154.3f, new Date(1427673599000L)), new AndWeight(-1.2f, new Date(0L), 255));
+
+		byte[] bb = WeightsCodec.encode(weights);
+		assertEquals(WeightsCodec.VERSION, bb[2]);
+		assertEquals(3, WeightsCodec.size(bb));
+
+		List<AndWeight> decoded = WeightsCodec.decode(bb);
+		assertEquals(weights.size(), decoded.size());
+		for (int i = 0; i < weights.size(); i++) {
+			assertEquals(weights.get(i).getWeight(), decoded.get(i).getWeight());
+			assertEquals(weights.get(i).getMeasureDate(), decoded.get(i).getMeasureDate());
+			assertEquals(weights.get(i).getPatient(), decoded.get(i).getPatient());
+		}
+	}
+
+	public void testColumns() {
+		WeightColumns columns = new WeightColumns();
+		columns.add(704, 1427673598L, 7);
+		columns.add(1543, 1427673599L, AndWeight.NO_PATIENT);
+
+		byte[] bb = WeightsCodec.encode(columns);
+		WeightColumns decoded = new WeightColumns();
+		WeightsCodec.decode(bb, decoded);
+
+		assertEquals(2, decoded.size());
+		for (int i = 0; i < 2; i++) {
+			assertEquals(columns.getTenthsOfKg(i), decoded.getTenthsOfKg(i));
+			assertEquals(columns.getTime(i), decoded.getTime(i));
+			assertEquals(columns.getPatient(i), decoded.getPatient(i));
+		}
+		assertTrue(Arrays.equals(bb, WeightsCodec.encode(decoded)));
+	}
+
+	public void testVersion1() {
+		byte[] bb = new byte[8 + 12];
+		bb[0] = 'A';
+		bb[1] = 'W';
+		bb[2] = 1;
+		bb[7] = 1;
+		int bits = Float.floatToIntBits(70.4f);
+		for (int i = 0; i < 4; i++) {
+			bb[8 + i] = (byte) (bits >>> (24 - 8 * i));
+		}
+		long time = 1427673598000L;
+		for (int i = 0; i < 8; i++) {
+			bb[12 + i] = (byte) (time >>> (56 - 8 * i));
+		}
+
+		List<AndWeight> decoded = WeightsCodec.decode(bb);
+		assertEquals(1, decoded.size());
+		assertEquals(70.4f, decoded.get(0).getWeight());
+		assertEquals(time, decoded.get(0).getMeasureDate().getTime());
+		assertEquals(AndWeight.NO_PATIENT, decoded.get(0).getPatient());
+	}
+
+	public void testInvalid() {
+		byte[] bb = WeightsCodec.encode(Arrays.asList(new AndWeight(70.4f, new Date())));
+
+		assertInvalid(null);
+		assertInvalid(Arrays.copyOf(bb, 4));
+		assertInvalid(Arrays.copyOf(bb, bb.length - 1));
+
+		byte[] magic = bb.clone();
+		magic[0] = 'X';
+		assertInvalid(magic);
+
+		byte[] version = bb.clone();
+		version[2] = 3;
+		assertInvalid(version);
+
+		byte[] count = bb.clone();
+		count[4] = (byte) 0x80;
+		assertInvalid(count);
+	}
+
+	private static void assertInvalid(byte[] bb) {
+		try {
+			WeightsCodec.decode(bb);
+			fail("decoded an invalid list of weights");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.service;
+
+import junit.framework.TestCase;
+
+/**
+ * Detection of the measurements sent again by the weight scale.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class DuplicateFilterTest extends TestCase {
+	private static final String DEVICE = "00:09:1F:00:00:01";
+	private static final long TIME = 1427673598L;
+
+	public void testCheckThenCommit() {
+		DuplicateFilter filter = new DuplicateFilter(1024, 16);
+
+		// not remembered until committed (e.g. the journal append failed)
+		assertFalse(filter.check(DEVICE, 7, TIME, 704));
+		assertFalse(filter.check(DEVICE, 7, TIME, 704));
+
+		filter.commit(DEVICE, 7, TIME, 704);
+		assertTrue(filter.check(DEVICE, 7, TIME, 704));
+		assertFalse(filter.check(DEVICE, 7, TIME, 705));
+		assertFalse(filter.check(DEVICE, 8, TIME, 704));
+		assertFalse(filter.check(DEVICE, 7, TIME + 1, 704));
+
+		assertEquals(6, filter.getChecked());
+		assertEquals(1, filter.getDuplicates());
+	}
+
+	public void testWindowPerDevice() {
+		DuplicateFilter filter = new DuplicateFilter(1024, 16);
+		filter.commit(DEVICE, 7, TIME, 704);
+
+		// another scale: found only in the Bloom filter, accepted without a verifier
+		assertFalse(filter.check("00:09:1F:00:00:02", 7, TIME, 704));
+		assertEquals(1, filter.getUncertain());
+	}
+
+	public void testSeed() {
+		DuplicateFilter filter = new DuplicateFilter(1024, 16);
+		filter.seed(7, TIME, 704);
+
+		assertFalse(filter.check(DEVICE, 7, TIME, 704));
+		assertEquals(1, filter.getUncertain());
+
+		filter.setVerifier(new DuplicateFilter.Verifier() {
+			@Override
+			public boolean contains(String device, int patient, long time, int tenthsOfKg) {
+				return patient == 7 && time == TIME && tenthsOfKg == 704;
+			}
+		});
+		assertTrue(filter.check(DEVICE, 7, TIME, 704));
+		assertEquals(1, filter.getDuplicates());
+
+		// then found in the window, without the verifier
+		filter.setVerifier(null);
+		assertTrue(filter.check(DEVICE, 7, TIME, 704));
+		assertEquals(1, filter.getUncertain());
+	}
+
+	public void testWindowEviction() {
+		DuplicateFilter filter = new DuplicateFilter(1024, 4);
+		for (int i = 0; i < 8; i++) {
+			filter.commit(DEVICE, 7, TIME + i, 704);
+		}
+		filter.setVerifier(new DuplicateFilter.Verifier() {
+			@Override
+			public boolean contains(String device, int patient, long time, int tenthsOfKg) {
+				return false;
+			}
+		});
+
+		// the recent ones are in the window, the old ones only in the Bloom filter (rejected by the verifier)
+		assertTrue(filter.check(DEVICE, 7, TIME + 7, 704));
+		assertFalse(filter.check(DEVICE, 7, TIME, 704));
+	}
+
+	public void testSetSizeForgets() {
+		DuplicateFilter filter = new DuplicateFilter(1024, 16);
+		filter.commit(DEVICE, 7, TIME, 704);
+		filter.setSize(2048, 32);
+
+		assertFalse(filter.check(DEVICE, 7, TIME, 704));
+		assertEquals(0, filter.getUncertain());
+	}
+
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright © 2015 e-Health Research Unit - Fondazione Bruno Kessler 
+ * http://ehealth.fbk.eu/
+ * 
+ * This document is a part of the source code and related artifacts of 
+ * the TreC Project. All rights reserved.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+package eu.fbk.trec.andweight.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+import eu.fbk.trec.andweight.model.AndWeight;
+import eu.fbk.trec.andweight.service.HandoffQueue.Policy;
+
+/**
+ * Policies of the queue between the sessions and the consumer, when the consumer is too slow.
+ * 
+ * @author Davide Pedranz (davide.pedranz@gmail.com)
+ */
+public class HandoffQueueTest extends TestCase {
+	private File spillFile;
+
+	@Override
+	protected void setUp() throws IOException {
+		spillFile = File.createTempFile("handoff", ".spill");
+		spillFile.delete();
+	}
+
+	@Override
+	protected void tearDown() {
+		spillFile.delete();
+	}
+
+	public void testDropOldest() throws InterruptedException {
+		HandoffQueue queue = new HandoffQueue(3, Policy.DROP_OLDEST, null, 0);
+		offer(queue, 0, 5);
+
+		assertEquals(3, queue.size());
+		assertEquals("[2, 3, 4]", drain(queue, null).toString());
+		assertTrue(queue.toString().contains("dropped=2"));
+	}
+
+	public void testSpillKeepsOrder() throws InterruptedException {
+		HandoffQueue queue = new HandoffQueue(4, Policy.SPILL, spillFile, 0);
+		offer(queue, 0, 10);
+		assertEquals(10, queue.size());
+
+		// the consumer takes some, the producers go on behind the spilled ones
+		List<AndWeight> batch = new ArrayList<>();
+		long[] sequences = new long[6];
+		assertEquals(6, queue.take(batch, sequences, 6));
+		assertEquals("[0, 1, 2, 3, 4, 5]", weights(batch).toString());
+		assertEquals(105, sequences[5]);
+		offer(queue, 10, 15);
+
+		List<Long> sequenceList = new ArrayList<>();
+		assertEquals("[6, 7, 8, 9, 10, 11, 12, 13, 14]", drain(queue, sequenceList).toString());
+		assertEquals("[106, 107, 108, 109, 110, 111, 112, 113, 114]", sequenceList.toString());
+		assertTrue(queue.toString().contains("dropped=0"));
+		assertFalse("spill file not deleted", spillFile.exists());
+	}
+
+	public void testSpillFailureDropsNewest() throws InterruptedException {
+		File missing = new File(new File(spillFile.getParentFile(), spillFile.getName() + ".missing"), "spill");
+		HandoffQueue queue = new HandoffQueue(2, Policy.SPILL, missing, 0);
+		offer(queue, 0, 4);
+
+		// the measurements which cannot be spilled are dropped, the queued ones are intact
+		assertEquals(2, queue.size());
+		List<AndWeight> batch = new ArrayList<>();
+		assertEquals(2, queue.take(batch, 10));
+		assertEquals("[0, 1]", weights(batch).toString());
+		assertTrue(queue.toString().contains("dropped=2"));
+
+		// then the queue works in memory as usual
+		offer(queue, 4, 6);
+		assertEquals("[4, 5]", drain(queue, null).toString());
+	}
+
+	public void testBlockDropsOldestAfterTimeout() throws InterruptedException {
+		HandoffQueue queue = new HandoffQueue(2, Policy.BLOCK, null, 50);
+		offer(queue, 0, 2);
+
+		long start = System.nanoTime();
+		offer(queue, 2, 3);
+		assertTrue((System.nanoTime() - start) / 1000000 >= 40);
+
+		assertEquals("[1, 2]", drain(queue, null).toString());
+	}
+
+	public void testBlockWaitsForConsumer() throws InterruptedException {
+		final HandoffQueue queue = new HandoffQueue(1, Policy.BLOCK, null, 10000);
+		offer(queue, 0, 1);
+
+		Thread consumer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+					queue.take(new ArrayList<AndWeight>(), 1);
+				} catch (InterruptedException e) {
+					// end
+				}
+			}
+		};
+		consumer.start();
+		offer(queue, 1, 2);
+		consumer.join();
+
+		assertEquals("[1]", drain(queue, null).toString());
+	}
+
+	public void testClosed() throws InterruptedException {
+		HandoffQueue queue = new HandoffQueue(2, Policy.DROP_OLDEST, null, 0);
+		offer(queue, 0, 1);
+		queue.close();
+
+		assertFalse(queue.offer(weight(1)));
+		List<AndWeight> batch = new ArrayList<>();
+		assertEquals(1, queue.take(batch, 10));
+		assertEquals(0, queue.take(batch, 10));
+	}
+
+	private static AndWeight weight(int i) {
+		return new AndWeight(i, new Date(i * 1000L));
+	}
+
+	private static void offer(HandoffQueue queue, int from, int to) {
+		for (int i = from; i < to; i++) {
+			assertTrue(queue.offer(weight(i), 100 + i));
+		}
+	}
+
+	/**
+	 * Close the queue and take all the measurements.
+	 */
+	private static List<Integer> drain(HandoffQueue queue, List<Long> sequenceList) throws InterruptedException {
+		queue.close();
+		List<AndWeight> batch = new ArrayList<>();
+		long[] sequences = new long[3];
+		int n;
+		while ((n = queue.take(batch, sequences, 3)) > 0) {
+			for (int i = 0; i < n && sequenceList != null; i++) {
+				sequenceList.add(sequences[i]);
+			}
+		}
+		return weights(batch);
+	}
+
+	private static List<Integer> weights(List<AndWeight> batch) {
+		List<Integer> weights = new ArrayList<>();
+		for (AndWeight w : batch) {
+			weights.add((int) w.getWeight());
+		}
+		return weights;
+	}
+
+}